@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * DownloadCacheTest.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.InstrumentationTestCase;
+
+/**
+ * Checks the HTTP exchanges of {@link DownloadCache} against a local server: the resumed range
+ * request, the restart when the server answers a range request with the whole document, the
+ * revalidation with the ETag and with the Last-Modified date, and the cached copy used when the
+ * server cannot be reached.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class DownloadCacheTest extends InstrumentationTestCase {
+
+	private static final int DOCUMENT_SIZE = 200 * 1024;
+	private static final int TRUNCATED_SIZE = 100 * 1024;
+	private static final long TIMEOUT_S = 30;
+	private static final String ETAG = "\"v1\"";
+	private static final String LAST_MODIFIED = "Tue, 01 Apr 2014 10:00:00 GMT";
+
+	private File mDir;
+	private DownloadCache mCache;
+	private StubServer mServer;
+	private byte[] mDocument;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDir = new File(getInstrumentation().getTargetContext().getCacheDir(), "DownloadCacheTest");
+		deleteFiles(mDir);
+		mCache = new DownloadCache(mDir);
+		mServer = new StubServer();
+		mDocument = makeDocument(1);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mServer.close();
+		deleteFiles(mDir);
+		super.tearDown();
+	}
+
+	public void testResumesWithIfRange() throws Exception {
+		mServer.setResponder(new Responder() {
+
+			@Override
+			public void respond(Map<String, String> request, OutputStream out) throws IOException {
+				// the connection is closed before the end of the document
+				writeHead(out, "200 OK", "ETag: " + ETAG + "\r\n", mDocument.length);
+				out.write(mDocument, 0, TRUNCATED_SIZE);
+				out.flush();
+				sleep();
+			}
+		});
+		assertNull(fetch());
+
+		mServer.setResponder(new Responder() {
+
+			@Override
+			public void respond(Map<String, String> request, OutputStream out) throws IOException {
+				int from = getRangeStart(request);
+				writeHead(out, "206 Partial Content", "Content-Range: bytes " + from + "-"
+						+ (mDocument.length - 1) + "/" + mDocument.length + "\r\n", mDocument.length - from);
+				out.write(mDocument, from, mDocument.length - from);
+			}
+		});
+		File file = fetch();
+
+		Map<String, String> resumed = mServer.getRequest(1);
+		assertEquals(ETAG, resumed.get("if-range"));
+		assertTrue(getRangeStart(resumed) > 0);
+		assertNotNull(file);
+		assertTrue(Arrays.equals(mDocument, readFile(file)));
+	}
+
+	public void testRestartsWhenRangeIsIgnored() throws Exception {
+		mServer.setResponder(new Responder() {
+
+			@Override
+			public void respond(Map<String, String> request, OutputStream out) throws IOException {
+				writeHead(out, "200 OK", "ETag: " + ETAG + "\r\n", mDocument.length);
+				out.write(mDocument, 0, TRUNCATED_SIZE);
+				out.flush();
+				sleep();
+			}
+		});
+		assertNull(fetch());
+
+		// the document has changed since the part was downloaded
+		final byte[] changed = makeDocument(2);
+		mServer.setResponder(new Responder() {
+
+			@Override
+			public void respond(Map<String, String> request, OutputStream out) throws IOException {
+				writeHead(out, "200 OK", "ETag: \"v2\"\r\n", changed.length);
+				out.write(changed);
+			}
+		});
+		File file = fetch();
+
+		Map<String, String> resumed = mServer.getRequest(1);
+		assertEquals(ETAG, resumed.get("if-range"));
+		assertTrue(getRangeStart(resumed) > 0);
+		assertNotNull(file);
+		assertTrue(Arrays.equals(changed, readFile(file)));
+	}
+
+	public void testRevalidatesWithETag() throws Exception {
+		mServer.setResponder(new Responder() {
+
+			@Override
+			public void respond(Map<String, String> request, OutputStream out) throws IOException {
+				if (ETAG.equals(request.get("if-none-match"))) {
+					writeHead(out, "304 Not Modified", "ETag: " + ETAG + "\r\n", -1);
+					return;
+				}
+				writeHead(out, "200 OK", "ETag: " + ETAG + "\r\n", mDocument.length);
+				out.write(mDocument);
+			}
+		});
+		assertNotNull(fetch());
+		expireCachedDocuments();
+		File file = fetch();
+
+		assertEquals(2, mServer.getRequestCount());
+		assertEquals(ETAG, mServer.getRequest(1).get("if-none-match"));
+		assertNotNull(file);
+		assertTrue(Arrays.equals(mDocument, readFile(file)));
+	}
+
+	public void testRevalidatesWithLastModified() throws Exception {
+		mServer.setResponder(new Responder() {
+
+			@Override
+			public void respond(Map<String, String> request, OutputStream out) throws IOException {
+				if (LAST_MODIFIED.equals(request.get("if-modified-since"))) {
+					writeHead(out, "304 Not Modified", "", -1);
+					return;
+				}
+				writeHead(out, "200 OK", "Last-Modified: " + LAST_MODIFIED + "\r\n", mDocument.length);
+				out.write(mDocument);
+			}
+		});
+		assertNotNull(fetch());
+		expireCachedDocuments();
+		File file = fetch();
+
+		assertEquals(2, mServer.getRequestCount());
+		Map<String, String> revalidation = mServer.getRequest(1);
+		assertEquals(LAST_MODIFIED, revalidation.get("if-modified-since"));
+		assertNull(revalidation.get("if-none-match"));
+		assertNotNull(file);
+		assertTrue(Arrays.equals(mDocument, readFile(file)));
+	}
+
+	public void testUsesCachedCopyWhenServerIsUnreachable() throws Exception {
+		mServer.setResponder(new Responder() {
+
+			@Override
+			public void respond(Map<String, String> request, OutputStream out) throws IOException {
+				writeHead(out, "200 OK", "ETag: " + ETAG + "\r\n", mDocument.length);
+				out.write(mDocument);
+			}
+		});
+		assertNotNull(fetch());
+		expireCachedDocuments();
+		mServer.close();
+		File file = fetch();
+
+		assertNotNull(file);
+		assertTrue(Arrays.equals(mDocument, readFile(file)));
+	}
+
+	/**
+	 * Fetches the document of the server and waits for the result.
+	 *
+	 * @return The cached file, or null if the download failed.
+	 */
+	private File fetch() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final File[] result = new File[1];
+		mCache.fetch(mServer.getUrl(), new DownloadCache.Listener() {
+
+			@Override
+			public void onDownloadProgress(String url, long read, long total) {}
+
+			@Override
+			public void onDownloadFinish(String url, File file) {
+				result[0] = file;
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(TIMEOUT_S, TimeUnit.SECONDS));
+		return result[0];
+	}
+
+	/**
+	 * Makes the cached documents due for revalidation, as if they were last checked long ago.
+	 */
+	private void expireCachedDocuments() throws IOException {
+		for (File file : mDir.listFiles()) {
+			if (!file.getName().endsWith(".meta") || file.getName().endsWith(".part.meta")) {
+				continue;
+			}
+			Properties meta = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				meta.load(in);
+			} finally {
+				in.close();
+			}
+			meta.setProperty("checked", "0");
+			OutputStream out = new FileOutputStream(file);
+			try {
+				meta.store(out, null);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static byte[] makeDocument(int version) {
+		byte[] document = new byte[DOCUMENT_SIZE];
+		for (int i = 0; i < document.length; i++) {
+			document[i] = (byte) (i * 31 + version);
+		}
+		return document;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		InputStream in = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < bytes.length) {
+				int n = in.read(bytes, read, bytes.length - read);
+				if (n < 0) {
+					break;
+				}
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private static void deleteFiles(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the first byte of a "Range: bytes=first-" request header, or -1.
+	 */
+	private static int getRangeStart(Map<String, String> request) {
+		String range = request.get("range");
+		if (range == null || !range.startsWith("bytes=") || !range.endsWith("-")) {
+			return -1;
+		}
+		return Integer.parseInt(range.substring(6, range.length() - 1));
+	}
+
+	/**
+	 * Writes the status line and the headers of a response, which closes the connection.
+	 *
+	 * @param length The Content-Length, or -1 for a response without body.
+	 */
+	private static void writeHead(OutputStream out, String status, String headers, int length)
+			throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		sb.append("Connection: close\r\n");
+		if (length >= 0) {
+			sb.append("Content-Type: application/pdf\r\n");
+			sb.append("Content-Length: ").append(length).append("\r\n");
+		}
+		sb.append(headers).append("\r\n");
+		out.write(sb.toString().getBytes("ISO-8859-1"));
+	}
+
+	/**
+	 * Leaves the client the time to store the bytes sent so far before the connection is closed.
+	 */
+	private static void sleep() {
+		try {
+			Thread.sleep(500);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Answers the requests of the {@link StubServer}.
+	 */
+	private interface Responder {
+		/**
+		 * Writes the response to a request.
+		 *
+		 * @param request The request headers, with lower-case names.
+		 * @param out     The stream of the connection, closed after this call.
+		 */
+		void respond(Map<String, String> request, OutputStream out) throws IOException;
+	}
+
+	/**
+	 * A local HTTP server standing in for the server of the documents. It serves one request per
+	 * connection, and records the headers of every request.
+	 */
+	private static class StubServer implements Runnable {
+		private final ServerSocket mSocket;
+		private final List<Map<String, String>> mRequests = new ArrayList<Map<String, String>>();
+		private volatile Responder mResponder;
+
+		StubServer() throws IOException {
+			mSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+			Thread thread = new Thread(this, "DownloadCacheTest-Server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		String getUrl() {
+			return "http://127.0.0.1:" + mSocket.getLocalPort() + "/document.pdf";
+		}
+
+		void setResponder(Responder responder) {
+			mResponder = responder;
+		}
+
+		synchronized int getRequestCount() {
+			return mRequests.size();
+		}
+
+		synchronized Map<String, String> getRequest(int index) {
+			return mRequests.get(index);
+		}
+
+		void close() throws IOException {
+			mSocket.close();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Socket socket;
+				try {
+					socket = mSocket.accept();
+				} catch (IOException e) {
+					// closed
+					return;
+				}
+				try {
+					serve(socket);
+				} catch (IOException e) {
+					// the client went away
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+
+		private void serve(Socket socket) throws IOException {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+					"ISO-8859-1"));
+			Map<String, String> request = new HashMap<String, String>();
+			String line = in.readLine();
+			while ((line = in.readLine()) != null && line.length() > 0) {
+				int colon = line.indexOf(':');
+				if (colon > 0) {
+					request.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+				}
+			}
+			synchronized (this) {
+				mRequests.add(request);
+			}
+			OutputStream out = socket.getOutputStream();
+			mResponder.respond(request, out);
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * SimpleReaderControlViewTest.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Debug;
+import android.test.InstrumentationTestCase;
+import android.test.UiThreadTest;
+import android.view.ContextThemeWrapper;
+import android.view.View;
+import android.widget.ImageView;
+
+import com.epapyrus.plugpdf.core.BaseReaderControl;
+import com.epapyrus.plugpdf.core.OutlineItem;
+import com.epapyrus.plugpdf.core.annotation.acroform.BaseField;
+import com.epapyrus.plugpdf.core.annotation.tool.BaseAnnotTool.AnnotToolType;
+import com.epapyrus.plugpdf.core.gesture.BaseGestureProcessor.GestureType;
+import com.epapyrus.plugpdf.core.viewer.BasePlugPDFDisplay.PageDisplayMode;
+
+/**
+ * Checks that turning pages in {@link SimpleReaderControlView} does not allocate once every page
+ * number has been shown, and that {@link SimpleReaderControlView#updatePageNumber(int, int)} shows
+ * the thumbnails of a warm thumbnail cache without asking the controller to render.
+ *
+ * No document is set, so the thumbnails are cached under a null document, as the control view
+ * looks them up.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class SimpleReaderControlViewTest extends InstrumentationTestCase {
+
+	private static final int PAGE_COUNT = 120;
+	private static final int THUMBNAIL_WIDTH = 16;
+
+	private SimpleReaderControlView mControlView;
+	private StubController mController;
+	private Bitmap[] mThumbnails;
+
+	@UiThreadTest
+	public void testPageTurnDoesNotAllocate() {
+		createControlView();
+		// steady state: every page number and the slider range have been shown once
+		turnPages();
+
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		try {
+			turnPages();
+		} finally {
+			Debug.stopAllocCounting();
+		}
+		assertEquals(0, Debug.getThreadAllocCount());
+	}
+
+	@UiThreadTest
+	public void testRepeatedPageNumberDoesNotAllocate() {
+		createControlView();
+		mControlView.updatePageNumber(7, PAGE_COUNT);
+
+		Debug.resetThreadAllocCount();
+		Debug.startAllocCounting();
+		try {
+			for (int i = 0; i < 100; i++) {
+				mControlView.updatePageNumber(7, PAGE_COUNT);
+			}
+		} finally {
+			Debug.stopAllocCounting();
+		}
+		assertEquals(0, Debug.getThreadAllocCount());
+		assertEquals(0, mController.mRenderRequests);
+	}
+
+	@UiThreadTest
+	public void testPageTurnShowsCachedThumbnails() {
+		createControlView();
+		ImageView thumbnail = (ImageView) mControlView.findViewById(R.id.rc_page_thumbnail);
+
+		for (int page = 1; page <= PAGE_COUNT; page++) {
+			mControlView.updatePageNumber(page, PAGE_COUNT);
+			assertSame(mThumbnails[page - 1], ((BitmapDrawable) thumbnail.getDrawable()).getBitmap());
+		}
+		assertEquals(0, mController.mRenderRequests);
+	}
+
+	/**
+	 * Inflates the control view on the UI thread, so that its slider refreshes synchronously, and
+	 * fills its thumbnail cache with a thumbnail of every page.
+	 */
+	private void createControlView() {
+		ContextThemeWrapper context = new ContextThemeWrapper(
+				getInstrumentation().getTargetContext(), android.R.style.Theme);
+		mControlView = (SimpleReaderControlView) View.inflate(context, R.layout.simple_reader_control, null);
+		mController = new StubController();
+		mControlView.createUILayout(mController);
+
+		PageThumbnailCache cache = new PageThumbnailCache(Integer.MAX_VALUE);
+		mThumbnails = new Bitmap[PAGE_COUNT];
+		for (int i = 0; i < PAGE_COUNT; i++) {
+			mThumbnails[i] = Bitmap.createBitmap(THUMBNAIL_WIDTH,
+					SimpleReaderControlView.THUMBNAIL_HEIGHT, Bitmap.Config.RGB_565);
+			cache.put(null, i, SimpleReaderControlView.THUMBNAIL_HEIGHT, mThumbnails[i]);
+		}
+		mControlView.setThumbnailCache(cache);
+	}
+
+	private void turnPages() {
+		for (int page = 1; page <= PAGE_COUNT; page++) {
+			mControlView.updatePageIndicator(page, PAGE_COUNT);
+		}
+		for (int page = PAGE_COUNT; page >= 1; page--) {
+			mControlView.updatePageIndicator(page, PAGE_COUNT);
+		}
+	}
+
+	/**
+	 * A controller without document, which counts the thumbnail renders asked by the view.
+	 */
+	private static class StubController implements BaseReaderControl {
+		int mRenderRequests;
+
+		@Override
+		public void search(String keyword, int direction) {}
+
+		@Override
+		public void resetSearchInfo() {}
+
+		@Override
+		public void goToPage(int pageIdx) {}
+
+		@Override
+		public void setPageDisplayMode(PageDisplayMode mode) {}
+
+		@Override
+		public List<OutlineItem> getOutlineItem() {
+			return null;
+		}
+
+		@Override
+		public void changeGestureType(GestureType type) {}
+
+		@Override
+		public void setAnnotationTool(AnnotToolType type) {}
+
+		@Override
+		public void changeScale(double scale, int x, int y) {}
+
+		@Override
+		public boolean fieldCenterOn(BaseField field) {
+			return false;
+		}
+
+		@Override
+		public void drawPage(Bitmap bitmap, int pageIdx, int pageW, int pageH, int patchX,
+							 int patchY, int patchW, int patchH) {
+			mRenderRequests++;
+		}
+
+		@Override
+		public PointF getPageSize(int pageIdx) {
+			mRenderRequests++;
+			return new PointF(THUMBNAIL_WIDTH, SimpleReaderControlView.THUMBNAIL_HEIGHT);
+		}
+
+		@Override
+		public void updateOutline(List<OutlineItem> outline) {}
+
+		@Override
+		public boolean canPrint() {
+			return true;
+		}
+
+		@Override
+		public boolean canModifyContent() {
+			return true;
+		}
+
+		@Override
+		public boolean canCopyContent() {
+			return true;
+		}
+
+		@Override
+		public boolean canModifyAnnot() {
+			return true;
+		}
+
+		@Override
+		public boolean canFillField() {
+			return true;
+		}
+
+		@Override
+		public boolean canExtract() {
+			return true;
+		}
+	}
+}
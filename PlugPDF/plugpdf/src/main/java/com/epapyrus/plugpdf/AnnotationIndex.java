@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * AnnotationIndex.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+import com.epapyrus.plugpdf.core.annotation.AnnotFile;
+import com.epapyrus.plugpdf.core.annotation.AnnotNote;
+import com.epapyrus.plugpdf.core.annotation.BaseAnnot;
+
+/**
+ * Keyword search over the text of the annotations of a document, such as the comments of the
+ * reviewers, which the page search does not look at.
+ *
+ * The annotations of every page are loaded once in the background with
+ * {@link PDFDocument#loadAnnotList(int)}, and their texts are indexed in memory with one
+ * {@link SearchIndex} per page whose entries are the annotations, so that a search does not load
+ * the annotations of any page. The pages whose annotations are edited are marked with
+ * {@link #invalidatePage(int)}; the next search loads and indexes those pages again, and only them.
+ *
+ * The texts of the note annotations (title and contents) and of the file annotations (title,
+ * contents, author and file name) are indexed; the other annotations do not expose their text.
+ *
+ * {@link #start()}, {@link #search} and {@link #close()} must be called from the UI thread; the
+ * listeners are called on the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class AnnotationIndex {
+
+	/**
+	 * Receives the results of a search.
+	 */
+	public interface Listener {
+		/**
+		 * Called once with the results of the latest search. Not called for a search replaced
+		 * by a newer one.
+		 *
+		 * @param keyword The searched keyword.
+		 * @param hits    The annotations which contain the keyword, in page order.
+		 */
+		void onAnnotationSearchResult(String keyword, Hit[] hits);
+	}
+
+	/**
+	 * An annotation which contains the searched keyword.
+	 */
+	public static class Hit {
+		private final int mPageIdx;
+		private final int mObjID;
+		private final String mType;
+		private final String mText;
+		final String mFolded;
+
+		Hit(int pageIdx, int objID, String type, String text) {
+			mPageIdx = pageIdx;
+			mObjID = objID;
+			mType = type;
+			mText = text;
+			mFolded = FoldedText.fold(text);
+		}
+
+		/**
+		 * Returns the (zero-based) index of the page of the annotation.
+		 */
+		public int getPageIdx() {
+			return mPageIdx;
+		}
+
+		/**
+		 * Returns the object ID of the annotation.
+		 */
+		public int getObjID() {
+			return mObjID;
+		}
+
+		/**
+		 * Returns the annotation type, see {@link BaseAnnot#getType()}.
+		 */
+		public String getType() {
+			return mType;
+		}
+
+		/**
+		 * Returns the indexed text of the annotation.
+		 */
+		public String getText() {
+			return mText;
+		}
+	}
+
+	private static final int PAGES_PER_BATCH = 8;
+
+	private final PDFDocument mDoc;
+	private final int mPageCount;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	// guarded by this
+	private final Hit[][] mPageHits;
+	private final SearchIndex[] mPageIndexes;
+	private final TreeSet<Integer> mDirtyPages = new TreeSet<Integer>();
+
+	private RenderExecutor.Task mLoadTask;
+	private RenderExecutor.Task mSearchTask;
+	private int mSearchGeneration;
+	private volatile boolean mClosed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param doc The document, which must stay open until {@link #close()}.
+	 */
+	public AnnotationIndex(PDFDocument doc) {
+		mDoc = doc;
+		mPageCount = doc.getPageCount();
+		mPageHits = new Hit[mPageCount][];
+		mPageIndexes = new SearchIndex[mPageCount];
+	}
+
+	/**
+	 * Starts loading the annotations of every page in the background.
+	 */
+	public void start() {
+		if (mLoadTask != null || mClosed) {
+			return;
+		}
+		// the same task is submitted again for every batch, so that loading yields to rendering
+		mLoadTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.PREFETCH,
+				new RenderExecutor.Step() {
+					private int mNext;
+
+					@Override
+					protected void run() {
+						int end = Math.min(mPageCount, mNext + PAGES_PER_BATCH);
+						for (int i = mNext; i < end && !mClosed; i++) {
+							ensurePage(i);
+						}
+						mNext = end;
+						if (mNext < mPageCount && !mClosed) {
+							RenderExecutor.getInstance().submit(RenderExecutor.Priority.PREFETCH, this);
+						}
+					}
+				});
+	}
+
+	/**
+	 * Marks the annotations of a page as modified. They are loaded again before the next search.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 */
+	public synchronized void invalidatePage(int pageIdx) {
+		if (pageIdx < 0 || pageIdx >= mPageCount) {
+			return;
+		}
+		mDirtyPages.add(pageIdx);
+	}
+
+	/**
+	 * Marks the annotations of every page as modified, e.g. after they are flattened.
+	 */
+	public synchronized void invalidateAll() {
+		for (int i = 0; i < mPageCount; i++) {
+			mDirtyPages.add(i);
+		}
+	}
+
+	/**
+	 * Searches the annotation texts. A search replaces the previous one. The first search loads
+	 * the annotations of the pages which are not loaded yet.
+	 *
+	 * @param keyword  The keyword to be found.
+	 * @param listener Receives the results.
+	 */
+	public void search(final String keyword, final Listener listener) {
+		if (mSearchTask != null) {
+			mSearchTask.cancel();
+		}
+		final int generation = ++mSearchGeneration;
+		mSearchTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.VISIBLE_PAGE,
+				new RenderExecutor.Task() {
+
+					@Override
+					protected void run() {
+						final Hit[] hits = find(keyword, this);
+						if (hits == null) {
+							return;
+						}
+						mHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								if (generation == mSearchGeneration && !mClosed) {
+									listener.onAnnotationSearchResult(keyword, hits);
+								}
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 * Stops the loading and the search.
+	 */
+	public void close() {
+		mClosed = true;
+		if (mLoadTask != null) {
+			mLoadTask.cancel();
+		}
+		if (mSearchTask != null) {
+			mSearchTask.cancel();
+		}
+	}
+
+	/**
+	 * Returns the annotations which contain the keyword. Runs on a worker thread.
+	 *
+	 * @return The hits, or null if the search was cancelled.
+	 */
+	private Hit[] find(String keyword, RenderExecutor.Task task) {
+		for (int i = 0; i < mPageCount; i++) {
+			if (task.isCancelled() || mClosed) {
+				return null;
+			}
+			ensurePage(i);
+		}
+		Hit[][] pageHits;
+		SearchIndex[] pageIndexes;
+		synchronized (this) {
+			pageHits = mPageHits.clone();
+			pageIndexes = mPageIndexes.clone();
+		}
+
+		String folded = FoldedText.fold(keyword).trim();
+		if (folded.length() == 0) {
+			return new Hit[0];
+		}
+		ArrayList<Hit> result = new ArrayList<Hit>();
+		for (int i = 0; i < pageHits.length; i++) {
+			Hit[] entries = pageHits[i];
+			if (entries == null || entries.length == 0) {
+				continue;
+			}
+			int[] candidates = pageIndexes[i].findCandidates(keyword);
+			// the index matches word by word, the keyword as a whole is checked on the candidates
+			if (candidates == null) {
+				for (Hit hit : entries) {
+					if (hit.mFolded.contains(folded)) {
+						result.add(hit);
+					}
+				}
+			} else {
+				for (int idx : candidates) {
+					if (entries[idx].mFolded.contains(folded)) {
+						result.add(entries[idx]);
+					}
+				}
+			}
+		}
+		return result.toArray(new Hit[result.size()]);
+	}
+
+	/**
+	 * Loads the annotations of a page unless they are loaded and unmodified.
+	 */
+	private void ensurePage(int pageIdx) {
+		synchronized (this) {
+			if (mPageHits[pageIdx] != null && !mDirtyPages.contains(pageIdx)) {
+				return;
+			}
+			// an edit made while the page is loaded marks it again
+			mDirtyPages.remove(pageIdx);
+		}
+		ArrayList<Hit> hits = new ArrayList<Hit>();
+		try {
+			BaseAnnot[] annots = mDoc.loadAnnotList(pageIdx);
+			if (annots != null) {
+				for (BaseAnnot annot : annots) {
+					String text = getAnnotText(annot);
+					if (text != null && text.trim().length() > 0) {
+						hits.add(new Hit(pageIdx, annot.getObjID(), annot.getType(), text));
+					}
+				}
+			}
+		} catch (Exception e) {
+			Log.w("PlugPDF", "[WARNING] cannot load annotations of page " + pageIdx + ": " + e.getMessage());
+		}
+		Hit[] entries = hits.toArray(new Hit[hits.size()]);
+		SearchIndex index = buildIndex(entries);
+		synchronized (this) {
+			mPageHits[pageIdx] = entries;
+			mPageIndexes[pageIdx] = index;
+		}
+	}
+
+	/**
+	 * Indexes the annotations of a page; every entry of the index is an annotation.
+	 *
+	 * @return The index, or null if the page has no annotation with text.
+	 */
+	private static SearchIndex buildIndex(Hit[] entries) {
+		if (entries.length == 0) {
+			return null;
+		}
+		SearchIndex.Builder builder = new SearchIndex.Builder(entries.length);
+		for (int i = 0; i < entries.length; i++) {
+			builder.addPage(i, FoldedText.of(entries[i].getText()));
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the searchable text of an annotation, or null if it has none.
+	 */
+	private static String getAnnotText(BaseAnnot annot) {
+		StringBuilder sb = new StringBuilder();
+		if (annot instanceof AnnotNote) {
+			AnnotNote note = (AnnotNote) annot;
+			append(sb, note.getTitle());
+			append(sb, note.getContents());
+		} else if (annot instanceof AnnotFile) {
+			AnnotFile file = (AnnotFile) annot;
+			append(sb, file.getTitle());
+			append(sb, file.getContents());
+			append(sb, file.getAuthor());
+			append(sb, file.getFileName());
+		} else {
+			return null;
+		}
+		return sb.toString();
+	}
+
+	private static void append(StringBuilder sb, String text) {
+		if (text == null || text.length() == 0) {
+			return;
+		}
+		if (sb.length() > 0) {
+			sb.append('\n');
+		}
+		sb.append(text);
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * AssetFileCache.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+
+/**
+ * Copies the PDF files bundled in the assets of the application to the cache directory, so that
+ * they can be opened by path instead of being read into memory.
+ *
+ * An asset is streamed to its file once, through a small buffer, and the file is reused until the
+ * application is updated. Opening by path also lets the reader index the text and the thumbnails of
+ * the bundled document, like any other file. The copy is never saved into:
+ * {@link SimpleDocumentReader#save()} saves the edits of a bundled document as a new file.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class AssetFileCache {
+
+	private static final String DIR_NAME = "plugpdf_assets";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private AssetFileCache() {
+	}
+
+	/**
+	 * Returns the cached copy of an asset, copying it first if needed. May take a while for a
+	 * large asset the first time, so it should not be called from the UI thread.
+	 *
+	 * @param context   {@link Context} used to open the assets and to locate the cache directory.
+	 * @param assetName The path of the file in the assets.
+	 * @return The cached file.
+	 * @throws IOException if the asset cannot be read or the copy cannot be written.
+	 */
+	public static synchronized File getFile(Context context, String assetName) throws IOException {
+		File dir = new File(context.getCacheDir(), DIR_NAME);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		File file = new File(dir, assetName.replace('/', '_'));
+		if (file.isFile() && file.length() > 0 && file.lastModified() >= getLastUpdateTime(context)) {
+			return file;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		InputStream in = context.getAssets().open(assetName);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("cannot replace " + file);
+		}
+		return file;
+	}
+
+	/**
+	 * Returns whether a file is the cached copy of an asset. The copy is replaced when the
+	 * application is updated and may be deleted with the cache, so it must not hold edits.
+	 *
+	 * @param context  {@link Context} used to locate the cache directory.
+	 * @param filePath The path of the file.
+	 */
+	public static boolean contains(Context context, String filePath) {
+		if (filePath == null) {
+			return false;
+		}
+		File dir = new File(context.getCacheDir(), DIR_NAME);
+		return dir.equals(new File(filePath).getParentFile());
+	}
+
+	/**
+	 * Returns the time the application was installed or last updated, after which the copies of
+	 * the assets are stale.
+	 */
+	private static long getLastUpdateTime(Context context) {
+		try {
+			return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			return Long.MAX_VALUE;
+		}
+	}
+}
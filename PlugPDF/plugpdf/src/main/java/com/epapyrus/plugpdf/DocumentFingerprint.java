@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * DocumentFingerprint.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes a stable identifier of a PDF file, used to key the data which is cached on disk
+ * for a document. The identifier is a SHA-1 digest of the file length and of its first and
+ * last blocks, so it changes whenever the document is saved but does not require reading
+ * the whole file.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+final class DocumentFingerprint {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private DocumentFingerprint() {
+	}
+
+	/**
+	 * Computes the fingerprint of the given file.
+	 *
+	 * @param file The PDF file.
+	 * @return Hexadecimal fingerprint string.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public static String compute(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			for (int i = 0; i < 8; i++) {
+				digest.update((byte) (length >>> (i * 8)));
+			}
+
+			byte[] buffer = new byte[BLOCK_SIZE];
+			int read = raf.read(buffer, 0, (int) Math.min(BLOCK_SIZE, length));
+			if (read > 0) {
+				digest.update(buffer, 0, read);
+			}
+			if (length > BLOCK_SIZE) {
+				raf.seek(Math.max(BLOCK_SIZE, length - BLOCK_SIZE));
+				read = raf.read(buffer);
+				if (read > 0) {
+					digest.update(buffer, 0, read);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+
+		byte[] hash = digest.digest();
+		char[] out = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			out[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+			out[i * 2 + 1] = HEX[hash[i] & 0x0f];
+		}
+		return new String(out);
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * DocumentHandleCache.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.File;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+
+/**
+ * Process-wide cache of open {@link PDFDocument} handles which are not in use, so that opening the
+ * same file again does not parse it again.
+ *
+ * A handle is taken out of the cache with {@link #acquire} and given back with {@link #release};
+ * a handle is used by one owner at a time. The handles are keyed by the path, the length and the
+ * modification time of the file, so a handle of a file modified since it was opened is never
+ * reused, and an edited handle is released instead of cached.
+ *
+ * The readers, the preloader, the parallel searches and the library index share the handles, so
+ * reopening a file closed recently does not parse it again. A reader detaches its handle from its
+ * view before giving it back, since the view would release it; when it cannot, the handle is
+ * {@link #disown disowned}.
+ *
+ * The least recently released handles are released when the cache holds more than
+ * {@link #MAX_HANDLES} handles, or when the estimated native memory of the handles exceeds
+ * {@link #MAX_BYTES}. The memory of a handle is estimated from the size of its file and its page
+ * count, since the engine does not report it.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class DocumentHandleCache {
+
+	/** The maximum number of cached handles. */
+	public static final int MAX_HANDLES = 8;
+	/** The maximum estimated native memory of the cached handles, in bytes. */
+	public static final long MAX_BYTES = 48L * 1024 * 1024;
+
+	// estimated native memory of the page tree and cross-reference entries of a page
+	private static final int BYTES_PER_PAGE = 16 * 1024;
+
+	private static DocumentHandleCache sInstance;
+
+	// most recently released first
+	private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+	private final IdentityHashMap<PDFDocument, Entry> mLent = new IdentityHashMap<PDFDocument, Entry>();
+	private long mBytes;
+
+	private static class Entry {
+		final String mPath;
+		final String mKey;
+		final String mPassword;
+		final PDFDocument mDoc;
+		long mBytes;
+
+		Entry(String path, String key, String password, PDFDocument doc) {
+			mPath = path;
+			mKey = key;
+			mPassword = password;
+			mDoc = doc;
+		}
+	}
+
+	/**
+	 * Returns the cache shared by the process.
+	 */
+	public static synchronized DocumentHandleCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new DocumentHandleCache();
+		}
+		return sInstance;
+	}
+
+	private DocumentHandleCache() {
+	}
+
+	/**
+	 * Returns a cached handle of the file, or opens a new one. The handle must be given back with
+	 * {@link #release(PDFDocument)}.
+	 *
+	 * @param filePath The path of the PDF file.
+	 * @param password The password of the file, if encrypted.
+	 * @return The handle.
+	 * @throws Exception if the file cannot be opened, see {@link PDFDocument#PDFDocument(String, String)}.
+	 */
+	public PDFDocument acquire(String filePath, String password) throws Exception {
+		String key = makeKey(filePath);
+		String pw = password != null ? password : "";
+		synchronized (this) {
+			Entry entry = remove(key, pw);
+			if (entry != null) {
+				mLent.put(entry.mDoc, entry);
+				return entry.mDoc;
+			}
+		}
+
+		// opened outside the lock: parsing a large file takes a while
+		PDFDocument doc = new PDFDocument(filePath, pw);
+		synchronized (this) {
+			mLent.put(doc, new Entry(filePath, key, pw, doc));
+		}
+		return doc;
+	}
+
+	/**
+	 * Returns whether a handle was obtained with {@link #acquire} and not given back yet.
+	 */
+	public synchronized boolean isLent(PDFDocument doc) {
+		return mLent.containsKey(doc);
+	}
+
+	/**
+	 * Forgets a handle obtained with {@link #acquire}, which its owner releases itself instead of
+	 * giving it back.
+	 */
+	public synchronized void disown(PDFDocument doc) {
+		mLent.remove(doc);
+	}
+
+	/**
+	 * Gives back a handle obtained with {@link #acquire}. The handle is cached, unless it was edited
+	 * or its file has been modified, in which case it is released.
+	 *
+	 * @param doc The handle.
+	 */
+	public void release(PDFDocument doc) {
+		Entry entry;
+		synchronized (this) {
+			entry = mLent.remove(doc);
+		}
+		if (entry == null || doc.wasReleased()) {
+			return;
+		}
+		if (doc.wasEdited() || !entry.mKey.equals(makeKey(entry.mPath))) {
+			doc.release();
+			return;
+		}
+
+		entry.mBytes = new File(entry.mPath).length() + (long) doc.getPageCount() * BYTES_PER_PAGE;
+		LinkedList<Entry> evicted = new LinkedList<Entry>();
+		synchronized (this) {
+			mEntries.addFirst(entry);
+			mBytes += entry.mBytes;
+			while (mEntries.size() > MAX_HANDLES || (mBytes > MAX_BYTES && mEntries.size() > 1)) {
+				Entry last = mEntries.removeLast();
+				mBytes -= last.mBytes;
+				evicted.add(last);
+			}
+		}
+		for (Entry last : evicted) {
+			last.mDoc.release();
+		}
+	}
+
+	/**
+	 * Releases every cached handle, e.g. when the system is low on memory. The handles in use are
+	 * not affected.
+	 */
+	public void clear() {
+		LinkedList<Entry> evicted;
+		synchronized (this) {
+			evicted = new LinkedList<Entry>(mEntries);
+			mEntries.clear();
+			mBytes = 0;
+		}
+		for (Entry entry : evicted) {
+			entry.mDoc.release();
+		}
+	}
+
+	/**
+	 * Removes the cached handle of a key and password. Must be called with the lock held.
+	 *
+	 * @return The entry of the handle, or null if none is cached.
+	 */
+	private Entry remove(String key, String password) {
+		Iterator<Entry> it = mEntries.iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.mKey.equals(key) && entry.mPassword.equals(password)) {
+				it.remove();
+				mBytes -= entry.mBytes;
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private static String makeKey(String filePath) {
+		File file = new File(filePath);
+		return filePath + '|' + file.length() + '|' + file.lastModified();
+	}
+}
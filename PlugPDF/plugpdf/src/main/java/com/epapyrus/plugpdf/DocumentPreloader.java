@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * DocumentPreloader.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+
+/**
+ * Opens a document and renders its first page in the background before the reader is shown, e.g.
+ * as soon as the user touches a document in a list, so that the parse and the first page overlap
+ * the transition to the reader activity.
+ *
+ * The next {@link SimpleDocumentReader#openFileAsync} of the same file and password adopts the
+ * prepared document, waiting for it if it is not ready yet, and shows the rendered page until the
+ * reader renders its own. A prepared document which is not adopted soon is released. The
+ * document is taken from the {@link DocumentHandleCache}, so a file read recently is not parsed
+ * again, and given back to it.
+ *
+ * One document is prepared at a time. All methods must be called from the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class DocumentPreloader {
+
+	/** The time a prepared document waits to be adopted, in milliseconds. */
+	public static final long EXPIRY_MS = 5000;
+
+	private static DocumentPreloader sInstance;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private Request mRequest;
+
+	/**
+	 * Receives the prepared document.
+	 */
+	interface Callback {
+		/**
+		 * @param prepared The prepared document, owned by the callee, or null if it could not be
+		 *                 opened, e.g. because of a wrong password, or if the preload was cancelled.
+		 */
+		void onPrepared(Prepared prepared);
+	}
+
+	/**
+	 * A document opened in the background, with its first page.
+	 */
+	static class Prepared {
+		final PDFDocument mDoc;
+		final Bitmap mFirstPage;
+
+		Prepared(PDFDocument doc, Bitmap firstPage) {
+			mDoc = doc;
+			mFirstPage = firstPage;
+		}
+
+		void release() {
+			DocumentHandleCache.getInstance().release(mDoc);
+		}
+	}
+
+	private static class Request {
+		final String mFilePath;
+		final String mPassword;
+		final int mWidth;
+		final int mHeight;
+		RenderExecutor.Task mTask;
+		boolean mDone;
+		Prepared mResult;
+		Callback mCallback;
+
+		Request(String filePath, String password, int width, int height) {
+			mFilePath = filePath;
+			mPassword = password != null ? password : "";
+			mWidth = width;
+			mHeight = height;
+		}
+
+		boolean matches(String filePath, String password) {
+			return mFilePath.equals(filePath) && mPassword.equals(password != null ? password : "");
+		}
+	}
+
+	/**
+	 * Returns the preloader shared by the process.
+	 */
+	public static synchronized DocumentPreloader getInstance() {
+		if (sInstance == null) {
+			sInstance = new DocumentPreloader();
+		}
+		return sInstance;
+	}
+
+	private DocumentPreloader() {
+	}
+
+	/**
+	 * Starts opening a file and rendering its first page in the background. The document
+	 * prepared before, if any other, is released.
+	 *
+	 * @param filePath The path of the PDF file.
+	 * @param password The password of the file, if encrypted.
+	 * @param width    The width of the viewport, in pixels; the first page is fitted into it.
+	 * @param height   The height of the viewport, in pixels.
+	 */
+	public void prepare(String filePath, String password, int width, int height) {
+		if (mRequest != null && mRequest.matches(filePath, password)) {
+			return;
+		}
+		cancel();
+		final Request request = new Request(filePath, password, width, height);
+		mRequest = request;
+		request.mTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.VISIBLE_PAGE,
+				new RenderExecutor.Task() {
+
+					@Override
+					protected void run() {
+						final Prepared prepared = open(request, this);
+						mHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								onDone(request, prepared);
+							}
+						});
+					}
+
+					@Override
+					protected void onCancelled() {
+						mHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								onDone(request, null);
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 * Releases the prepared document, or stops preparing it.
+	 */
+	public void cancel() {
+		Request request = mRequest;
+		if (request == null) {
+			return;
+		}
+		mRequest = null;
+		mHandler.removeCallbacks(mExpiry);
+		if (!request.mDone) {
+			// released by onDone() if it is already being opened
+			request.mTask.cancel();
+		} else if (request.mResult != null) {
+			request.mResult.release();
+		}
+		if (request.mCallback != null) {
+			request.mCallback.onPrepared(null);
+		}
+	}
+
+	/**
+	 * Takes the document prepared for the file and password, if any. The callback is called once
+	 * the document is ready, immediately if it already is.
+	 *
+	 * @return true if the document is prepared or being prepared, and the callback will be called;
+	 * otherwise false.
+	 */
+	boolean take(String filePath, String password, Callback callback) {
+		Request request = mRequest;
+		if (request == null || request.mCallback != null || !request.matches(filePath, password)) {
+			return false;
+		}
+		mHandler.removeCallbacks(mExpiry);
+		if (request.mDone) {
+			mRequest = null;
+			callback.onPrepared(request.mResult);
+		} else {
+			request.mCallback = callback;
+		}
+		return true;
+	}
+
+	private void onDone(Request request, Prepared prepared) {
+		if (request != mRequest) {
+			if (prepared != null) {
+				prepared.release();
+			}
+			return;
+		}
+		request.mDone = true;
+		request.mResult = prepared;
+		if (request.mCallback != null) {
+			mRequest = null;
+			request.mCallback.onPrepared(prepared);
+		} else {
+			mHandler.postDelayed(mExpiry, EXPIRY_MS);
+		}
+	}
+
+	private final Runnable mExpiry = new Runnable() {
+
+		@Override
+		public void run() {
+			cancel();
+		}
+	};
+
+	/**
+	 * Opens the document and renders its first page. Runs on a worker thread.
+	 *
+	 * @return The prepared document, or null if it cannot be opened or the request was cancelled.
+	 */
+	private static Prepared open(Request request, RenderExecutor.Task task) {
+		PDFDocument doc;
+		try {
+			doc = DocumentHandleCache.getInstance().acquire(request.mFilePath, request.mPassword);
+		} catch (Exception e) {
+			Log.w("PlugPDF", "[WARNING] cannot preload " + request.mFilePath + ": " + e.getMessage());
+			return null;
+		}
+		if (task.isCancelled() || doc.getPageCount() == 0) {
+			DocumentHandleCache.getInstance().release(doc);
+			return null;
+		}
+
+		PointF size = doc.getPageSize(0);
+		double scale = Math.min(request.mWidth / size.x, request.mHeight / size.y);
+		int width = Math.max(1, (int) (size.x * scale));
+		int height = Math.max(1, (int) (size.y * scale));
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		doc.drawPage2(0, bitmap, width, height, 0, 0, width, height);
+		return new Prepared(doc, bitmap);
+	}
+}
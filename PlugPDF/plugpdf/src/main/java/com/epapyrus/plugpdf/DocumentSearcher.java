@@ -0,0 +1,820 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * DocumentSearcher.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.regex.PatternSyntaxException;
+
+import android.app.AlertDialog;
+import android.content.Context;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+import com.epapyrus.plugpdf.core.PropertyManager;
+import com.epapyrus.plugpdf.core.Register;
+import com.epapyrus.plugpdf.core.SearchInfo;
+import com.epapyrus.plugpdf.core.viewer.BasePlugPDFDisplay;
+import com.epapyrus.plugpdf.core.viewer.BasePlugPDFDisplay.PageDisplayMode;
+import com.epapyrus.plugpdf.core.viewer.ReaderListener;
+import com.epapyrus.plugpdf.core.viewer.ReaderView;
+
+/**
+ * Keyword search backed by a {@link SearchIndex}.
+ *
+ * Once the {@link TextExtractionPipeline} of the opened file has extracted every page, the index is
+ * read from the cache directory of the document, or built in the background from the extracted
+ * texts and then written there, keyed by the {@link DocumentFingerprint} of the file. Once the index
+ * is available, a search only runs the native search on the pages the index selects, instead of on
+ * every page from the current one.
+ *
+ * A search text in the {@link TextQuery} syntax (regular expression, AND/OR terms, proximity) is
+ * matched against the extracted page texts by a {@link QuerySearch} instead of the native search.
+ *
+ * The behaviour otherwise follows {@link ReaderView#search(String, int)}: the hit is shown through
+ * {@link Register#setSearchInfo(SearchInfo)} and the result is reported to
+ * {@link ReaderListener#onSearchFinish(boolean)}.
+ *
+ * All methods must be called from the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class DocumentSearcher implements TextExtractionListener {
+
+	private static final int PAGES_PER_TASK = 16;
+	private static final int RESULT_CACHE_SIZE = 4096;
+
+	private final Context mContext;
+	private final ReaderView mReaderView;
+	private final ReaderListener mListener;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final SearchResultCache mResultCache = new SearchResultCache(RESULT_CACHE_SIZE);
+	private volatile boolean mTextOutdated;
+	private boolean mQuerySyntax;
+	private QuerySearch mQuerySearch;
+
+	private volatile TextExtractionPipeline mPipeline;
+	private ParallelDocumentSearch mParallelSearch;
+	private ParallelDocumentSearch.Search mParallelRun;
+	private ParallelDocumentSearch.Search mParallelScan;
+	private RenderExecutor.Task mScanTask;
+	private int[] mAllPages;
+	private String mIncrementalKeyword;
+	private BitSet mIncrementalMisses;
+	private volatile SearchIndex mIndex;
+	private volatile boolean mClosed;
+	private volatile RenderExecutor.Task mIndexTask;
+	private RenderExecutor.Task mSearchTask;
+	private int mLastSearchPageIdx = -1;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param context    {@link Context} used to show the search result dialog.
+	 * @param readerView The {@link ReaderView} displaying the document.
+	 * @param listener   Receives {@link ReaderListener#onSearchFinish(boolean)}.
+	 */
+	public DocumentSearcher(Context context, ReaderView readerView, ReaderListener listener) {
+		mContext = context;
+		mReaderView = readerView;
+		mListener = listener;
+	}
+
+	/**
+	 * Loads or builds the index of the document once the text of all its pages is extracted.
+	 *
+	 * @param pipeline The text extraction of the opened file.
+	 */
+	public void open(TextExtractionPipeline pipeline) {
+		mPipeline = pipeline;
+		mResultCache.setTextSource(pipeline);
+		pipeline.addListener(this);
+		if (pipeline.isFinished()) {
+			onTextExtractionFinish();
+		}
+	}
+
+	@Override
+	public void onTextExtractionProgress(int extractedPageCount, int pageCount) {
+	}
+
+	@Override
+	public void onTextExtractionFinish() {
+		final TextExtractionPipeline pipeline = mPipeline;
+		if (pipeline == null || mIndexTask != null) {
+			return;
+		}
+
+		submitIndexTask(new RenderExecutor.Step() {
+
+			@Override
+			protected void run() {
+				File file = new File(pipeline.getDirectory(), SearchIndex.FILE_NAME);
+				int pageCount = pipeline.getPageCount();
+				SearchIndex index = SearchIndex.readFrom(file, pageCount);
+				if (index == null) {
+					indexPages(pipeline, new SearchIndex.Builder(pageCount), 0, file);
+				} else if (!mTextOutdated) {
+					mIndex = index;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the background work and forgets the index. The index file stays on disk.
+	 */
+	public void close() {
+		mClosed = true;
+		if (mPipeline != null) {
+			mPipeline.removeListener(this);
+			mPipeline = null;
+		}
+		mResultCache.setTextSource(null);
+		RenderExecutor.Task task = mIndexTask;
+		if (task != null) {
+			task.cancel();
+		}
+		setParallelSearch(null);
+		closeQuerySearch();
+		mIndex = null;
+	}
+
+	/**
+	 * Returns whether the index of the document is available.
+	 */
+	public boolean isReady() {
+		return mIndex != null;
+	}
+
+	/**
+	 * Uses additional document handles to search, so that searching does not make the page
+	 * rendering wait. The searcher closes it when it is closed, and as soon as the document is
+	 * edited: the additional handles read the file on disk, which does not have the edits.
+	 *
+	 * @param parallelSearch The {@link ParallelDocumentSearch} of the opened file, or null to
+	 *                       search on the displayed document.
+	 */
+	public void setParallelSearch(ParallelDocumentSearch parallelSearch) {
+		stop();
+		stopScan();
+		if (mParallelSearch != null) {
+			mParallelSearch.close();
+		}
+		if (parallelSearch != null && mTextOutdated) {
+			parallelSearch.close();
+			parallelSearch = null;
+		}
+		mParallelSearch = parallelSearch;
+		if (parallelSearch != null) {
+			parallelSearch.setResultCache(mResultCache);
+		}
+	}
+
+	/**
+	 * Drops the cached search results. Called when the content of the document changes; the
+	 * extracted texts, the index and the parallel search handles are no longer used to search
+	 * from then on, so every page is searched on the displayed document.
+	 */
+	public void invalidateResults() {
+		mTextOutdated = true;
+		mIndex = null;
+		setParallelSearch(null);
+		closeQuerySearch();
+		mResultCache.setTextSource(null);
+		mResultCache.invalidate();
+	}
+
+	/**
+	 * Searches the keyword using the index, or on every page when the search is parallel.
+	 *
+	 * @param keyword   The string to be found.
+	 * @param direction The direction of the next page (1 : front, -1 : reverse, 0 : current page only).
+	 * @return false if the searcher cannot serve this search, in which case the caller
+	 * should fall back to {@link ReaderView#search(String, int)}.
+	 */
+	public boolean search(String keyword, int direction) {
+		if (keyword == null || keyword.length() == 0) {
+			return false;
+		}
+		checkDocumentEdited();
+		if (isQuery(keyword)) {
+			return searchQuery(keyword, direction);
+		}
+		keyword = toNativeKeyword(toKeyword(keyword));
+		int[] candidates = findCandidates(keyword,
+				mParallelSearch != null || direction == 0 || mTextOutdated);
+		if (candidates == null) {
+			return false;
+		}
+
+		int currentIdx = mReaderView.getPlugPDFDisplay().getPageIdx();
+		int[] pages;
+		if (direction == 0) {
+			if (mLastSearchPageIdx == currentIdx) {
+				return true;
+			}
+			mLastSearchPageIdx = currentIdx;
+			int pos = firstCandidate(candidates, currentIdx, 1);
+			pages = pos < candidates.length && candidates[pos] == currentIdx
+					? new int[] { currentIdx } : new int[0];
+		} else {
+			SearchInfo info = Register.getSearchInfo();
+			int startIdx = (info == null || info.isEmpty()) ? currentIdx : info.getPageIdx() + direction;
+			pages = pagesFrom(candidates, startIdx, direction);
+		}
+
+		runSearch(keyword, pages, null, direction != 0);
+		return true;
+	}
+
+	/**
+	 * Searches the keyword while it is being typed: the pages are searched from the current page
+	 * outward, and the nearest hit is shown. Unlike {@link #search(String, int)}, this works before
+	 * the index is ready, and a failure is reported without dialog.
+	 *
+	 * When the keyword extends the previous incremental keyword, the pages already known not to
+	 * contain the previous one are skipped, so each keystroke refines the previous search.
+	 *
+	 * @param keyword The string to be found.
+	 * @return false if this keyword cannot be searched here, in which case the caller should fall
+	 * back to {@link ReaderView#search(String, int)}.
+	 */
+	public boolean searchIncremental(String keyword) {
+		if (keyword == null || keyword.length() == 0) {
+			return false;
+		}
+		if (isQuery(keyword)) {
+			// queries are only run once confirmed
+			return true;
+		}
+		checkDocumentEdited();
+		keyword = toNativeKeyword(toKeyword(keyword));
+		int[] candidates = findCandidates(keyword, true);
+
+		BitSet misses;
+		if (mIncrementalMisses != null && keyword.contains(mIncrementalKeyword)) {
+			synchronized (mIncrementalMisses) {
+				misses = (BitSet) mIncrementalMisses.clone();
+			}
+		} else {
+			misses = new BitSet();
+		}
+		mIncrementalKeyword = keyword;
+		mIncrementalMisses = misses;
+
+		int currentIdx = mReaderView.getPlugPDFDisplay().getPageIdx();
+		runSearch(keyword, pagesOutward(candidates, currentIdx, misses), misses, false);
+		return true;
+	}
+
+	/**
+	 * Returns the pages which may contain the keyword, or null if the index cannot tell and
+	 * allPages is false. Once the text is outdated, the index is not consulted.
+	 */
+	private int[] findCandidates(String keyword, boolean allPages) {
+		SearchIndex index = mTextOutdated ? null : mIndex;
+		int[] candidates = index == null ? null : index.findCandidates(keyword);
+		if (candidates == null && allPages) {
+			candidates = getAllPages();
+		}
+		return candidates;
+	}
+
+	private int[] getAllPages() {
+		if (mAllPages == null) {
+			mAllPages = new int[mReaderView.getPageCount()];
+			for (int i = 0; i < mAllPages.length; i++) {
+				mAllPages[i] = i;
+			}
+		}
+		return mAllPages;
+	}
+
+	/**
+	 * Runs a {@link TextQuery} and shows the first matching page in the given direction.
+	 *
+	 * @return false if the query is invalid.
+	 */
+	private boolean searchQuery(String text, final int direction) {
+		TextQuery query = parseQuery(text);
+		if (query == null) {
+			return false;
+		}
+		int[] candidates = query.findCandidates(mTextOutdated ? null : mIndex, getAllPages());
+
+		int currentIdx = mReaderView.getPlugPDFDisplay().getPageIdx();
+		int[] pages;
+		if (direction == 0) {
+			if (mLastSearchPageIdx == currentIdx) {
+				return true;
+			}
+			mLastSearchPageIdx = currentIdx;
+			int pos = firstCandidate(candidates, currentIdx, 1);
+			pages = pos < candidates.length && candidates[pos] == currentIdx
+					? new int[] { currentIdx } : new int[0];
+		} else {
+			SearchInfo info = Register.getSearchInfo();
+			int startIdx = (info == null || info.isEmpty()) ? currentIdx : info.getPageIdx() + direction;
+			pages = pagesFrom(candidates, startIdx, direction);
+		}
+
+		stop();
+		mSearchTask = getQuerySearch().search(query, pages, new ParallelDocumentSearch.Listener() {
+			private boolean mFound;
+
+			@Override
+			public boolean onHit(SearchInfo info) {
+				mFound = true;
+				showResult(info, direction != 0);
+				return false;
+			}
+
+			@Override
+			public void onFinish() {
+				if (!mFound) {
+					showResult(null, direction != 0);
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Drops the cached results and the index once the document has been edited. Checked before
+	 * each search, since the document can be edited again after the first invalidation, and the
+	 * results cached in between would be stale.
+	 */
+	private void checkDocumentEdited() {
+		PDFDocument doc = mReaderView.getDocument();
+		if (doc == null || !doc.wasEdited()) {
+			return;
+		}
+		if (mTextOutdated) {
+			mResultCache.invalidate();
+		} else {
+			invalidateResults();
+		}
+	}
+
+	/**
+	 * Enables/disables the query syntax of {@link TextQuery}. Disabled by default, so that a keyword
+	 * such as "AND" or "/usr/bin/" is searched as typed.
+	 *
+	 * @param enable true to parse the search texts using the query syntax as queries.
+	 */
+	public void setQuerySyntaxEnabled(boolean enable) {
+		mQuerySyntax = enable;
+	}
+
+	private boolean isQuery(String text) {
+		return mQuerySyntax && TextQuery.isQuery(text);
+	}
+
+	/**
+	 * Returns the keyword of a search text which is not a query: with the query syntax, a text in
+	 * double quotes is searched without its quotes.
+	 */
+	String toKeyword(String text) {
+		return mQuerySyntax ? TextQuery.unquote(text) : text;
+	}
+
+	private TextQuery parseQuery(String text) {
+		try {
+			return TextQuery.parse(text);
+		} catch (PatternSyntaxException e) {
+			Log.w("PlugPDF", "[WARNING] invalid search query: " + e.getDescription());
+			return null;
+		}
+	}
+
+	private QuerySearch getQuerySearch() {
+		if (mQuerySearch == null) {
+			mQuerySearch = new QuerySearch(mTextOutdated ? null : mPipeline, mReaderView.getDocument(),
+					mResultCache);
+		}
+		return mQuerySearch;
+	}
+
+	private void closeQuerySearch() {
+		if (mQuerySearch != null) {
+			mQuerySearch.close();
+			mQuerySearch = null;
+		}
+	}
+
+	/**
+	 * Searches the pages in order and shows the first hit.
+	 *
+	 * @param misses Receives the pages searched without hit, or null.
+	 */
+	private void runSearch(final String keyword, final int[] pages, final BitSet misses,
+						   final boolean alertOnFailure) {
+		stop();
+		final boolean unAccent = PropertyManager.isIncludeUnAccentSearchResults();
+		final PDFDocument doc = mReaderView.getDocument();
+
+		if (mParallelSearch != null) {
+			mParallelRun = mParallelSearch.search(keyword, pages, unAccent,
+					new ParallelDocumentSearch.Listener() {
+						private boolean mFound;
+
+						@Override
+						public boolean onHit(SearchInfo info) {
+							mFound = true;
+							addMisses(misses, pages, info.getPageIdx());
+							showResult(info, alertOnFailure);
+							return false;
+						}
+
+						@Override
+						public void onFinish() {
+							if (!mFound) {
+								addMisses(misses, pages, -1);
+								showResult(null, alertOnFailure);
+							}
+						}
+					});
+			return;
+		}
+
+		mSearchTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.VISIBLE_PAGE,
+				new RenderExecutor.Task() {
+
+					@Override
+					protected void run() {
+						SearchInfo found = null;
+						for (int i = 0; i < pages.length && !isCancelled(); i++) {
+							RectF[] areas = mResultCache.search(doc, pages[i], keyword, unAccent);
+							if (areas.length > 0) {
+								found = new SearchInfo(keyword, pages[i], areas);
+								break;
+							}
+							addMisses(misses, pages, i, i + 1);
+						}
+						if (isCancelled()) {
+							return;
+						}
+
+						final SearchInfo result = found;
+						final RenderExecutor.Task task = this;
+						mHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								if (!task.isCancelled() && !mClosed) {
+									mSearchTask = null;
+									showResult(result, alertOnFailure);
+								}
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 * Records as misses the pages searched before the hit page, or all of them if hitPageIdx is -1.
+	 */
+	private static void addMisses(BitSet misses, int[] pages, int hitPageIdx) {
+		int end = 0;
+		while (end < pages.length && pages[end] != hitPageIdx) {
+			end++;
+		}
+		addMisses(misses, pages, 0, end);
+	}
+
+	private static void addMisses(BitSet misses, int[] pages, int from, int to) {
+		if (misses == null) {
+			return;
+		}
+		synchronized (misses) {
+			for (int i = from; i < to; i++) {
+				misses.set(pages[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the candidates from startIdx in the given direction, in search order.
+	 */
+	static int[] pagesFrom(int[] candidates, int startIdx, int direction) {
+		int pos = firstCandidate(candidates, startIdx, direction);
+		if (direction > 0) {
+			int[] pages = new int[Math.max(0, candidates.length - pos)];
+			System.arraycopy(candidates, pos, pages, 0, pages.length);
+			return pages;
+		}
+		int[] pages = new int[Math.max(0, pos + 1)];
+		for (int i = 0; i < pages.length; i++) {
+			pages[i] = candidates[pos - i];
+		}
+		return pages;
+	}
+
+	/**
+	 * Returns the candidates which are not known misses, ordered by distance from the current page.
+	 */
+	static int[] pagesOutward(int[] candidates, int currentIdx, BitSet misses) {
+		int[] pages = new int[candidates.length];
+		int n = 0;
+		int right = firstCandidate(candidates, currentIdx, 1);
+		int left = right - 1;
+		while (left >= 0 || right < candidates.length) {
+			int pageIdx;
+			if (right < candidates.length
+					&& (left < 0 || candidates[right] - currentIdx <= currentIdx - candidates[left])) {
+				pageIdx = candidates[right++];
+			} else {
+				pageIdx = candidates[left--];
+			}
+			if (!misses.get(pageIdx)) {
+				pages[n++] = pageIdx;
+			}
+		}
+		int[] out = new int[n];
+		System.arraycopy(pages, 0, out, 0, n);
+		return out;
+	}
+
+	/**
+	 * Searches every page for the keyword and streams all the hits, in page order, independently
+	 * of the search shown in the reader. Starting a scan stops the previous one.
+	 *
+	 * @param keyword  The string to be found.
+	 * @param listener Receives the hits of every page, on the UI thread.
+	 * @return false if this keyword cannot be searched here.
+	 */
+	public boolean startScan(String keyword, final ParallelDocumentSearch.Listener listener) {
+		stopScan();
+		if (keyword == null || keyword.length() == 0) {
+			return false;
+		}
+		checkDocumentEdited();
+		if (isQuery(keyword)) {
+			TextQuery query = parseQuery(keyword);
+			if (query == null) {
+				return false;
+			}
+			mScanTask = getQuerySearch().search(query,
+					query.findCandidates(mTextOutdated ? null : mIndex, getAllPages()), listener);
+			return true;
+		}
+		keyword = toNativeKeyword(toKeyword(keyword));
+		final int[] pages = findCandidates(keyword, true);
+		final boolean unAccent = PropertyManager.isIncludeUnAccentSearchResults();
+
+		if (mParallelSearch != null) {
+			mParallelScan = mParallelSearch.search(keyword, pages, unAccent, listener);
+			return true;
+		}
+		scanPages(keyword, pages, 0, unAccent, listener);
+		return true;
+	}
+
+	/**
+	 * Stops the running scan, if any.
+	 */
+	public void stopScan() {
+		if (mParallelScan != null) {
+			mParallelScan.cancel();
+			mParallelScan = null;
+		}
+		if (mScanTask != null) {
+			mScanTask.cancel();
+			mScanTask = null;
+		}
+	}
+
+	/**
+	 * Searches the next block of pages of a scan on the displayed document, posts its hits and
+	 * queues the following block, so that the scan yields to the page rendering.
+	 */
+	private void scanPages(final String keyword, final int[] pages, final int from,
+						   final boolean unAccent, final ParallelDocumentSearch.Listener listener) {
+		final PDFDocument doc = mReaderView.getDocument();
+		mScanTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.THUMBNAIL,
+				new RenderExecutor.Step() {
+
+					@Override
+					protected void run() {
+						final int end = Math.min(pages.length, from + PAGES_PER_TASK);
+						final SearchInfo[] hits = new SearchInfo[end - from];
+						for (int i = from; i < end; i++) {
+							if (isCancelled()) {
+								return;
+							}
+							RectF[] areas = mResultCache.search(doc, pages[i], keyword, unAccent);
+							if (areas.length > 0) {
+								hits[i - from] = new SearchInfo(keyword, pages[i], areas);
+							}
+						}
+
+						final RenderExecutor.Task task = this;
+						mHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								if (task.isCancelled() || mClosed) {
+									return;
+								}
+								for (SearchInfo hit : hits) {
+									if (hit != null && !listener.onHit(hit)) {
+										mScanTask = null;
+										listener.onFinish();
+										return;
+									}
+								}
+								if (end < pages.length) {
+									scanPages(keyword, pages, end, unAccent, listener);
+								} else {
+									mScanTask = null;
+									listener.onFinish();
+								}
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 * Shows a hit found by a scan in the reader.
+	 *
+	 * @param info The hit areas of a page.
+	 */
+	public void showHit(SearchInfo info) {
+		stop();
+		showResult(info, false);
+	}
+
+	/**
+	 * Returns the text of a page, from the extracted texts if available. May block on the
+	 * document; call it from a worker thread.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 * @return The page text.
+	 */
+	public String getPageText(int pageIdx) {
+		TextExtractionPipeline pipeline = mPipeline;
+		String text = pipeline == null ? null : pipeline.getPageText(pageIdx);
+		return text != null ? text : mReaderView.getDocument().getPageText(pageIdx);
+	}
+
+	/**
+	 * Cancels the running search, if any.
+	 */
+	public void stop() {
+		if (mParallelRun != null) {
+			mParallelRun.cancel();
+			mParallelRun = null;
+		}
+		if (mSearchTask != null) {
+			mSearchTask.cancel();
+			mSearchTask = null;
+		}
+	}
+
+	/**
+	 * Forgets the page searched last, so that the next search of the current page is not skipped.
+	 * Called when the keyword changes.
+	 */
+	public void reset() {
+		stop();
+		mLastSearchPageIdx = -1;
+	}
+
+	/**
+	 * Returns the position in candidates of the first page at or after startIdx in the given direction,
+	 * or a position out of the array bounds if there is none.
+	 */
+	static int firstCandidate(int[] candidates, int startIdx, int direction) {
+		int low = 0;
+		int high = candidates.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (candidates[mid] < startIdx) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		if (direction < 0 && (low >= candidates.length || candidates[low] != startIdx)) {
+			return low - 1;
+		}
+		return low;
+	}
+
+	private void showResult(SearchInfo info, boolean alertOnFailure) {
+		if (info == null) {
+			mListener.onSearchFinish(false);
+			if (alertOnFailure) {
+				new AlertDialog.Builder(mContext)
+						.setMessage(R.string.text_search_found_fail)
+						.setPositiveButton(R.string.text_ok, null)
+						.show();
+			}
+			return;
+		}
+
+		mListener.onSearchFinish(true);
+		if (mReaderView.getPageDisplayMode() == PageDisplayMode.THUMBNAIL) {
+			mReaderView.setPageDisplayMode(PageDisplayMode.HORIZONTAL);
+		}
+
+		BasePlugPDFDisplay display = mReaderView.getPlugPDFDisplay();
+		mLastSearchPageIdx = info.getPageIdx();
+		if (info.getPageIdx() != display.getPageIdx()) {
+			display.goToPage(info.getPageIdx());
+		}
+		Register.setSearchInfo(info);
+		display.setupPageViews();
+	}
+
+	/**
+	 * Adds the stored text of the next pages to the builder, then queues the following pages, so that
+	 * indexing always yields to rendering. Runs on a worker thread.
+	 */
+	private void indexPages(final TextExtractionPipeline pipeline, final SearchIndex.Builder builder,
+							int from, final File file) {
+		int pageCount = pipeline.getPageCount();
+		int end = Math.min(pageCount, from + PAGES_PER_TASK);
+		for (int i = from; i < end; i++) {
+			if (mClosed) {
+				return;
+			}
+			builder.addPage(i, pipeline.getFoldedText(i));
+		}
+
+		if (end < pageCount) {
+			final int next = end;
+			submitIndexTask(new RenderExecutor.Step() {
+
+				@Override
+				protected void run() {
+					indexPages(pipeline, builder, next, file);
+				}
+			});
+			return;
+		}
+
+		SearchIndex index = builder.build();
+		try {
+			index.writeTo(file);
+		} catch (IOException e) {
+			Log.w("PlugPDF", "[WARNING] cannot write search index: " + e.getMessage());
+		}
+		if (!mClosed && !mTextOutdated) {
+			mIndex = index;
+		}
+	}
+
+	private void submitIndexTask(RenderExecutor.Step task) {
+		if (!mClosed) {
+			mIndexTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.PREFETCH, task);
+		}
+	}
+
+	/**
+	 * Returns the keyword as the native search expects it. Like {@link ReaderView#search(String, int)},
+	 * a keyword containing Arabic characters is reversed, since the text of such pages is in visual
+	 * order.
+	 *
+	 * @param keyword The keyword as typed.
+	 * @return The keyword to search.
+	 */
+	static String toNativeKeyword(String keyword) {
+		if (keyword == null || !hasArabicCharacters(keyword)) {
+			return keyword;
+		}
+		return new StringBuilder(keyword).reverse().toString();
+	}
+
+	private static boolean hasArabicCharacters(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if ((c >= 0x0600 && c <= 0x06ff) || (c >= 0x0750 && c <= 0x077f)
+					|| (c >= 0xfb50 && c <= 0xfdff) || (c >= 0xfe70 && c <= 0xfefc)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * DownloadCache.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Disk cache of the PDF documents downloaded over HTTP, so that a remote document is opened by
+ * path like a local file instead of being read into memory.
+ *
+ * A document is streamed to its file through a small buffer. An interrupted transfer is resumed
+ * with a range request, guarded by the ETag or the Last-Modified date of the partial file, and
+ * starts again if the document has changed meanwhile. A cached document is used as is for
+ * {@link #REVALIDATE_AFTER_MS} after it was last checked; it is then revalidated with a
+ * conditional request, and still used if the server cannot be reached. The least recently used
+ * documents are deleted when the cache exceeds {@link #MAX_BYTES}.
+ *
+ * The documents are downloaded one at a time on a background thread; the listeners are called on
+ * the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class DownloadCache {
+
+	/** The time a cached document is used without asking the server whether it has changed. */
+	public static final long REVALIDATE_AFTER_MS = 10 * 60 * 1000;
+	/** The maximum size of the cached documents, in bytes. */
+	public static final long MAX_BYTES = 256L * 1024 * 1024;
+
+	private static final String DIR_NAME = "plugpdf_downloads";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+	private static final int READ_TIMEOUT_MS = 30 * 1000;
+	// progress of a document of unknown length is reported every PROGRESS_STEP bytes
+	private static final long PROGRESS_STEP = 1024 * 1024;
+
+	private static final String META_URL = "url";
+	private static final String META_ETAG = "etag";
+	private static final String META_LAST_MODIFIED = "lastModified";
+	private static final String META_CHECKED = "checked";
+
+	private static DownloadCache sInstance;
+
+	private final File mDir;
+	private final ExecutorService mWorker;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * Receives the progress and the result of a download.
+	 */
+	public interface Listener {
+		/**
+		 * Called as the document is downloaded.
+		 *
+		 * @param url   The URL of the document.
+		 * @param read  The number of bytes in the cache so far, including a resumed part.
+		 * @param total The length of the document, or -1 if unknown.
+		 */
+		void onDownloadProgress(String url, long read, long total);
+
+		/**
+		 * Called once when the document is in the cache, or the download failed or was cancelled.
+		 *
+		 * @param url  The URL of the document.
+		 * @param file The cached document, or null.
+		 */
+		void onDownloadFinish(String url, File file);
+	}
+
+	/**
+	 * A download started with {@link #fetch}.
+	 */
+	public static class Download {
+		private final String mUrl;
+		private final Listener mListener;
+		private volatile boolean mCancelled;
+
+		Download(String url, Listener listener) {
+			mUrl = url;
+			mListener = listener;
+		}
+
+		/**
+		 * Returns the URL of the document.
+		 */
+		public String getUrl() {
+			return mUrl;
+		}
+
+		/**
+		 * Stops the download. The part already downloaded is kept, and resumed by the next fetch.
+		 */
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		/**
+		 * Returns whether {@link #cancel()} has been called.
+		 */
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+	}
+
+	/**
+	 * Returns the cache shared by the process, in the cache directory of the application.
+	 *
+	 * @param context {@link Context} used to locate the cache directory.
+	 */
+	public static synchronized DownloadCache getInstance(Context context) {
+		if (sInstance == null) {
+			sInstance = new DownloadCache(new File(context.getApplicationContext().getCacheDir(), DIR_NAME));
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor, e.g. for a cache in another directory. Two caches must not share a directory.
+	 *
+	 * @param dir The directory of the cached documents, created if needed.
+	 */
+	public DownloadCache(File dir) {
+		mDir = dir;
+		mWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "PlugPDF-Download");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached document of a URL, downloading or revalidating it first if needed.
+	 *
+	 * @param url      The http or https URL of the document.
+	 * @param listener Receives the progress and the cached file.
+	 * @return The download, which can be cancelled.
+	 */
+	public Download fetch(String url, Listener listener) {
+		final Download download = new Download(url, listener);
+		mWorker.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				File file = null;
+				try {
+					if (!download.mCancelled) {
+						file = load(download);
+					}
+				} catch (IOException e) {
+					Log.w("PlugPDF", "[WARNING] cannot download " + download.mUrl + ": " + e.getMessage());
+				}
+				final File result = download.mCancelled ? null : file;
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						download.mListener.onDownloadFinish(download.mUrl, result);
+					}
+				});
+			}
+		});
+		return download;
+	}
+
+	/**
+	 * Deletes the cached documents and the partial downloads which are not in progress.
+	 */
+	public void clear() {
+		mWorker.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				File[] files = mDir.listFiles();
+				if (files != null) {
+					for (File file : files) {
+						file.delete();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached document, downloading it if needed. Runs on the worker thread.
+	 *
+	 * @return The cached file, or null if the download was cancelled.
+	 */
+	private File load(Download download) throws IOException {
+		if (!mDir.isDirectory() && !mDir.mkdirs()) {
+			throw new IOException("cannot create " + mDir);
+		}
+		String key = makeKey(download.mUrl);
+		File file = new File(mDir, key + ".pdf");
+		File metaFile = new File(mDir, key + ".meta");
+		File part = new File(mDir, key + ".part");
+		File partMetaFile = new File(mDir, key + ".part.meta");
+		long now = System.currentTimeMillis();
+
+		Properties meta = file.isFile() ? readMeta(metaFile) : null;
+		if (meta != null && now - getLong(meta, META_CHECKED) < REVALIDATE_AFTER_MS) {
+			touch(metaFile, now);
+			return file;
+		}
+		Properties partMeta = meta == null && part.isFile() ? readMeta(partMetaFile) : null;
+		long offset = partMeta != null ? part.length() : 0;
+
+		HttpURLConnection conn = (HttpURLConnection) new URL(download.mUrl).openConnection();
+		try {
+			conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+			conn.setReadTimeout(READ_TIMEOUT_MS);
+			// ranges and lengths refer to the document itself, not to a compressed transfer
+			conn.setRequestProperty("Accept-Encoding", "identity");
+			if (meta != null) {
+				setValidators(conn, meta, "If-None-Match", "If-Modified-Since");
+			} else if (offset > 0 && setValidators(conn, partMeta, "If-Range", "If-Range")) {
+				conn.setRequestProperty("Range", "bytes=" + offset + "-");
+			} else {
+				offset = 0;
+			}
+
+			int code;
+			try {
+				code = conn.getResponseCode();
+			} catch (IOException e) {
+				if (meta != null) {
+					Log.w("PlugPDF", "[WARNING] cannot revalidate " + download.mUrl + ", using the cached copy: "
+							+ e.getMessage());
+					return file;
+				}
+				throw e;
+			}
+			if (meta != null && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				meta.setProperty(META_CHECKED, Long.toString(now));
+				writeMeta(metaFile, meta);
+				return file;
+			}
+			if (code == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+				if (getRangeStart(conn) != offset) {
+					part.delete();
+					throw new IOException("unexpected range " + conn.getHeaderField("Content-Range"));
+				}
+			} else if (code == HttpURLConnection.HTTP_OK) {
+				// a new download, or the document changed since the part was downloaded
+				offset = 0;
+			} else if (meta != null) {
+				Log.w("PlugPDF", "[WARNING] cannot revalidate " + download.mUrl + " (HTTP " + code
+						+ "), using the cached copy");
+				return file;
+			} else {
+				throw new IOException("HTTP " + code);
+			}
+
+			// the validators are kept with the part, so that an interrupted transfer can resume
+			Properties newMeta = new Properties();
+			newMeta.setProperty(META_URL, download.mUrl);
+			copyHeader(conn, "ETag", newMeta, META_ETAG, partMeta);
+			copyHeader(conn, "Last-Modified", newMeta, META_LAST_MODIFIED, partMeta);
+			writeMeta(partMetaFile, newMeta);
+
+			long length = getLong(conn, "Content-Length");
+			long total = length >= 0 ? offset + length : -1;
+			if (!copy(conn.getInputStream(), part, offset, total, download)) {
+				return null;
+			}
+			if (total >= 0 && part.length() != total) {
+				throw new IOException("transfer interrupted at " + part.length() + " of " + total + " bytes");
+			}
+
+			// the validators of the previous document must not be taken for those of the new one
+			metaFile.delete();
+			if (!part.renameTo(file)) {
+				throw new IOException("cannot replace " + file);
+			}
+			newMeta.setProperty(META_CHECKED, Long.toString(now));
+			writeMeta(metaFile, newMeta);
+			partMetaFile.delete();
+		} finally {
+			conn.disconnect();
+		}
+		trim(file);
+		return file;
+	}
+
+	/**
+	 * Streams the response to the part file, appending from the given offset.
+	 *
+	 * @return false if the download was cancelled.
+	 */
+	private boolean copy(InputStream in, File part, long offset, long total, Download download)
+			throws IOException {
+		try {
+			FileOutputStream out = new FileOutputStream(part, offset > 0);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				long read = offset;
+				long reported = -1;
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					if (download.mCancelled) {
+						return false;
+					}
+					out.write(buffer, 0, n);
+					read += n;
+					long step = total > 0 ? read * 100 / total : read / PROGRESS_STEP;
+					if (step != reported) {
+						reported = step;
+						postProgress(download, read, total);
+					}
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return true;
+	}
+
+	private void postProgress(final Download download, final long read, final long total) {
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				if (!download.mCancelled) {
+					download.mListener.onDownloadProgress(download.mUrl, read, total);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records the use of a cached document in the modification time of its metadata. The time of
+	 * the document itself is left alone, since the caches of the opened files are keyed by it.
+	 */
+	private static void touch(File metaFile, long now) {
+		if (!metaFile.setLastModified(now)) {
+			Log.w("PlugPDF", "[WARNING] cannot touch " + metaFile);
+		}
+	}
+
+	/**
+	 * Deletes the least recently used documents, except the given one, while the cache is larger
+	 * than {@link #MAX_BYTES}.
+	 */
+	private void trim(File keep) {
+		File[] files = mDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		long bytes = 0;
+		for (File file : files) {
+			bytes += file.length();
+		}
+		Arrays.sort(files, new Comparator<File>() {
+
+			@Override
+			public int compare(File a, File b) {
+				return Long.valueOf(getMetaFile(a).lastModified()).compareTo(getMetaFile(b).lastModified());
+			}
+		});
+		for (File file : files) {
+			if (bytes <= MAX_BYTES) {
+				break;
+			}
+			if (file.equals(keep) || !file.getName().endsWith(".pdf")) {
+				continue;
+			}
+			bytes -= file.length();
+			file.delete();
+			getMetaFile(file).delete();
+		}
+	}
+
+	private File getMetaFile(File file) {
+		String name = file.getName();
+		int dot = name.indexOf('.');
+		return new File(mDir, (dot >= 0 ? name.substring(0, dot) : name) + ".meta");
+	}
+
+	/**
+	 * Sets the validators of a cached document or part as the given request headers.
+	 *
+	 * @return false if there is no validator.
+	 */
+	private static boolean setValidators(HttpURLConnection conn, Properties meta, String etagHeader,
+										 String dateHeader) {
+		String etag = meta.getProperty(META_ETAG);
+		String lastModified = meta.getProperty(META_LAST_MODIFIED);
+		if (etag != null) {
+			conn.setRequestProperty(etagHeader, etag);
+		}
+		if (lastModified != null && (etag == null || !etagHeader.equals(dateHeader))) {
+			conn.setRequestProperty(dateHeader, lastModified);
+		}
+		return etag != null || lastModified != null;
+	}
+
+	private static void copyHeader(HttpURLConnection conn, String header, Properties meta, String key,
+								   Properties previous) {
+		String value = conn.getHeaderField(header);
+		if (value == null && previous != null) {
+			// a range response may omit the validators of the document
+			value = previous.getProperty(key);
+		}
+		if (value != null) {
+			meta.setProperty(key, value);
+		}
+	}
+
+	/**
+	 * Returns the first byte of a Content-Range response header, "bytes first-last/length".
+	 */
+	private static long getRangeStart(HttpURLConnection conn) {
+		String range = conn.getHeaderField("Content-Range");
+		if (range == null || !range.startsWith("bytes ")) {
+			return -1;
+		}
+		int dash = range.indexOf('-');
+		try {
+			return Long.parseLong(range.substring(6, dash).trim());
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+
+	private static long getLong(HttpURLConnection conn, String header) {
+		try {
+			return Long.parseLong(conn.getHeaderField(header));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static long getLong(Properties meta, String key) {
+		try {
+			return Long.parseLong(meta.getProperty(key));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static Properties readMeta(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		Properties meta = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				meta.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w("PlugPDF", "[WARNING] cannot read " + file + ": " + e.getMessage());
+			return null;
+		}
+		return meta;
+	}
+
+	private static void writeMeta(File file, Properties meta) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			meta.store(out, null);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("cannot replace " + file);
+		}
+	}
+
+	/**
+	 * Returns the name of the cached files of a URL.
+	 */
+	private static String makeKey(String url) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(url.hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+}
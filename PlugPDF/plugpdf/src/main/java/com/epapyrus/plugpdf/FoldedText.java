@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * FoldedText.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.ByteArrayOutputStream;
+import java.text.Normalizer;
+import java.util.LinkedHashSet;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+
+/**
+ * A page text folded for matching, with the offset of every folded character in the original text.
+ *
+ * The folding removes the accents the way {@link PDFDocument#removeAccentStr(String)} does (canonical
+ * decomposition, then the combining diacritical marks are dropped), maps the full-width ASCII forms
+ * and the ideographic space to ASCII, lower-cases, and collapses every run of white space into a
+ * single space. Arabic text is folded too: the presentation forms are mapped to the base letters,
+ * and the vowel marks and the tatweel are dropped. A keyword folded with {@link #fold(String)} can then be found in the folded text with
+ * a plain {@link String#indexOf(String, int)}, and the offset map gives back the original spelling of
+ * each occurrence.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class FoldedText {
+
+	private final String mOriginal;
+	private final String mText;
+	private final int[] mOffsets;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param original The original text.
+	 * @param text     The folded text.
+	 * @param offsets  The offset in the original text of every folded character, followed by the
+	 *                 length of the original text.
+	 */
+	FoldedText(String original, String text, int[] offsets) {
+		mOriginal = original;
+		mText = text;
+		mOffsets = offsets;
+	}
+
+	/**
+	 * Folds a text and records the offset map.
+	 *
+	 * ASCII characters are folded in place. The other characters are folded run by run: a run
+	 * which is already decomposed, as most text outside the Latin accents is, is not normalized
+	 * again character by character.
+	 *
+	 * @param original The original text.
+	 * @return The folded text.
+	 */
+	public static FoldedText of(String original) {
+		int length = original.length();
+		Folder out = new Folder(length);
+		int i = 0;
+		while (i < length) {
+			char c = original.charAt(i);
+			if (c < 0x80) {
+				if (c >= 'A' && c <= 'Z') {
+					c = (char) (c + ('a' - 'A'));
+				} else if (Character.isWhitespace(c)) {
+					c = ' ';
+				}
+				out.append(c, i);
+				i++;
+				continue;
+			}
+			int end = i + 1;
+			while (end < length && original.charAt(end) >= 0x80) {
+				end++;
+			}
+			boolean decomposed = Normalizer.isNormalized(original.subSequence(i, end),
+					Normalizer.Form.NFD);
+			for (; i < end; i++) {
+				foldChar(original.charAt(i), i, decomposed, out);
+			}
+		}
+		return out.build(original);
+	}
+
+	/**
+	 * Folds a keyword the same way as the page texts.
+	 *
+	 * @param text The text to fold.
+	 * @return The folded text.
+	 */
+	public static String fold(String text) {
+		return of(text).mText;
+	}
+
+	/**
+	 * Folds one non-ASCII character, unless it is dropped.
+	 *
+	 * @param c          The character.
+	 * @param offset     Its offset in the original text.
+	 * @param decomposed true if the run of the character is already in canonical decomposition.
+	 * @param out        Receives the folded characters.
+	 */
+	private static void foldChar(char c, int offset, boolean decomposed, Folder out) {
+		if (c >= 0xff01 && c <= 0xff5e) {
+			out.append(Character.toLowerCase((char) (c - 0xfee0)), offset);
+			return;
+		}
+		if (Character.isWhitespace(c) || Character.isSpaceChar(c)) {
+			out.append(' ', offset);
+			return;
+		}
+		if (isCombiningDiacriticalMark(c) || isArabicMark(c)) {
+			return;
+		}
+		if ((c >= 0xfb50 && c <= 0xfdff) || (c >= 0xfe70 && c <= 0xfefc)) {
+			// Arabic presentation forms, including the lam-alef ligatures
+			String folded = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFKC);
+			for (int i = 0; i < folded.length(); i++) {
+				out.append(folded.charAt(i), offset);
+			}
+			return;
+		}
+		if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+			out.append(c, offset);
+			return;
+		}
+		if (decomposed) {
+			out.append(Character.toLowerCase(c), offset);
+			return;
+		}
+		String folded = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+		for (int i = 0; i < folded.length(); i++) {
+			char d = folded.charAt(i);
+			if (!isCombiningDiacriticalMark(d)) {
+				out.append(Character.toLowerCase(d), offset);
+			}
+		}
+	}
+
+	private static boolean isCombiningDiacriticalMark(char c) {
+		return c >= 0x0300 && c <= 0x036f;
+	}
+
+	private static boolean isArabicMark(char c) {
+		return (c >= 0x064b && c <= 0x065f) || c == 0x0670 || c == 0x0640;
+	}
+
+	/**
+	 * Returns the original text.
+	 */
+	public String getOriginal() {
+		return mOriginal;
+	}
+
+	/**
+	 * Returns the folded text.
+	 */
+	public String getText() {
+		return mText;
+	}
+
+	/**
+	 * Returns the offset in the original text where a folded character starts.
+	 *
+	 * @param foldedIdx The index in the folded text, or its length.
+	 */
+	public int getOriginalStart(int foldedIdx) {
+		return mOffsets[foldedIdx];
+	}
+
+	/**
+	 * Returns the offset in the original text where a folded range ends. The dropped marks which
+	 * follow the last character of the range belong to it.
+	 *
+	 * @param foldedEnd The (exclusive) end of the range in the folded text.
+	 */
+	public int getOriginalEnd(int foldedEnd) {
+		if (foldedEnd == 0) {
+			return mOffsets[0];
+		}
+		return Math.max(mOffsets[foldedEnd], mOffsets[foldedEnd - 1] + 1);
+	}
+
+	/**
+	 * Returns the distinct original spellings of the occurrences of a folded keyword.
+	 *
+	 * @param keyword A keyword folded with {@link #fold(String)}.
+	 * @return The original spellings, in order of first occurrence; empty if there is none.
+	 */
+	public LinkedHashSet<String> findOriginalForms(String keyword) {
+		LinkedHashSet<String> forms = new LinkedHashSet<String>();
+		if (keyword.length() == 0) {
+			return forms;
+		}
+		int idx = mText.indexOf(keyword);
+		while (idx >= 0) {
+			int end = idx + keyword.length();
+			forms.add(mOriginal.substring(getOriginalStart(idx), getOriginalEnd(end)));
+			idx = mText.indexOf(keyword, end);
+		}
+		return forms;
+	}
+
+	/**
+	 * Encodes the offset map, as the variable-length deltas between consecutive offsets.
+	 */
+	byte[] encodeOffsets() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(mOffsets.length + 8);
+		int last = 0;
+		for (int offset : mOffsets) {
+			int value = offset - last;
+			while ((value & ~0x7f) != 0) {
+				out.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+			last = offset;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes an offset map encoded by {@link #encodeOffsets()}.
+	 *
+	 * @param original The original text.
+	 * @param text     The folded text.
+	 * @param bytes    The encoded offset map.
+	 * @return The folded text with its offset map.
+	 */
+	static FoldedText decode(String original, String text, byte[] bytes) {
+		int[] offsets = new int[text.length() + 1];
+		int pos = 0;
+		int last = 0;
+		for (int i = 0; i < offsets.length; i++) {
+			int value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = bytes[pos++] & 0xff;
+				value |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			last += value;
+			offsets[i] = last;
+		}
+		return new FoldedText(original, text, offsets);
+	}
+
+	/**
+	 * Accumulates the folded text and its offset map, collapsing the runs of spaces.
+	 */
+	private static class Folder {
+		private final StringBuilder mText;
+		private int[] mOffsets;
+		private int mLength;
+
+		Folder(int capacity) {
+			mText = new StringBuilder(capacity);
+			mOffsets = new int[capacity + 1];
+		}
+
+		void append(char c, int offset) {
+			if (c == ' ' && mLength > 0 && mText.charAt(mLength - 1) == ' ') {
+				return;
+			}
+			if (mLength + 1 >= mOffsets.length) {
+				int[] grown = new int[mOffsets.length * 2];
+				System.arraycopy(mOffsets, 0, grown, 0, mLength);
+				mOffsets = grown;
+			}
+			mText.append(c);
+			mOffsets[mLength++] = offset;
+		}
+
+		FoldedText build(String original) {
+			int[] offsets = mOffsets;
+			offsets[mLength] = original.length();
+			if (offsets.length != mLength + 1) {
+				offsets = new int[mLength + 1];
+				System.arraycopy(mOffsets, 0, offsets, 0, mLength + 1);
+			}
+			return new FoldedText(original, mText.toString(), offsets);
+		}
+	}
+}
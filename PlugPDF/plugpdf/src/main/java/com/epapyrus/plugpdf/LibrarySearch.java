@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * LibrarySearch.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+
+/**
+ * Keyword search over a set of PDF files, such as the files of a document list.
+ *
+ * The files are indexed one after the other in the background: the text of every page is extracted
+ * into the same {@link PageTextStore} and {@link SearchIndex} which the reader uses for the file, in
+ * the cache directory keyed by its {@link DocumentFingerprint}, so a file already opened in the
+ * reader is not extracted again and the other way around. The indexes then stay in memory, and a
+ * search reads the texts of the candidate pages of the index, to drop the pages which do not
+ * contain the keyword and to make the snippets. The text stores are only opened during a search,
+ * so that the indexed files do not hold file descriptors.
+ *
+ * Encrypted files cannot be indexed without their password and are skipped.
+ *
+ * All methods must be called from the UI thread; the listeners are called on the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class LibrarySearch {
+
+	/**
+	 * Receives the progress of the indexing.
+	 */
+	public interface IndexListener {
+		/**
+		 * Called whenever a file has been indexed or skipped.
+		 *
+		 * @param indexedFileCount The number of files which can be searched.
+		 * @param fileCount        The number of files.
+		 */
+		void onIndexProgress(int indexedFileCount, int fileCount);
+	}
+
+	/**
+	 * Receives the results of a search.
+	 */
+	public interface ResultListener {
+		/**
+		 * Called once with the results of the latest search. Not called for a search replaced
+		 * by a newer one.
+		 *
+		 * @param query   The searched keyword.
+		 * @param results The pages which contain the keyword, in file and page order.
+		 */
+		void onSearchResult(String query, Result[] results);
+	}
+
+	/**
+	 * A page which contains the searched keyword.
+	 */
+	public static class Result {
+		private final String mFilePath;
+		private final int mPageIdx;
+		private final String mSnippet;
+
+		Result(String filePath, int pageIdx, String snippet) {
+			mFilePath = filePath;
+			mPageIdx = pageIdx;
+			mSnippet = snippet;
+		}
+
+		/**
+		 * Returns the path of the file.
+		 */
+		public String getFilePath() {
+			return mFilePath;
+		}
+
+		/**
+		 * Returns the (zero-based) page index.
+		 */
+		public int getPageIdx() {
+			return mPageIdx;
+		}
+
+		/**
+		 * Returns the text around the keyword, on a single line.
+		 */
+		public String getSnippet() {
+			return mSnippet;
+		}
+	}
+
+	private static final int PAGES_PER_BATCH = 8;
+	private static final int MAX_RESULTS = 200;
+
+	private final Context mContext;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+	private IndexListener mIndexListener;
+	private IndexStep mIndexStep;
+	private RenderExecutor.Task mSearchTask;
+	private int mSearchGeneration;
+	private volatile boolean mPaused;
+	private volatile boolean mClosed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param context {@link Context} used to locate the cache directory.
+	 */
+	public LibrarySearch(Context context) {
+		mContext = context.getApplicationContext();
+	}
+
+	/**
+	 * Sets the listener of the indexing progress.
+	 *
+	 * @param listener An implementation of IndexListener, or null.
+	 */
+	public void setIndexListener(IndexListener listener) {
+		mIndexListener = listener;
+	}
+
+	/**
+	 * Sets the files to search, and starts indexing the ones which are new or have changed.
+	 * The indexes of the files which are no longer in the list are dropped.
+	 *
+	 * @param filePaths The paths of the PDF files, in the order of the results.
+	 */
+	public void setFiles(List<String> filePaths) {
+		HashMap<String, Entry> previous = new HashMap<String, Entry>();
+		for (Entry entry : mEntries) {
+			previous.put(entry.mKey, entry);
+		}
+		mEntries.clear();
+		for (String path : filePaths) {
+			File file = new File(path);
+			String key = path + '|' + file.length() + '|' + file.lastModified();
+			Entry entry = previous.remove(key);
+			mEntries.add(entry != null ? entry : new Entry(path, key));
+		}
+		for (Entry entry : previous.values()) {
+			entry.close();
+		}
+		notifyIndexProgress();
+		indexNext();
+	}
+
+	/**
+	 * Suspends the indexing, e.g. while a file is opened in the reader. The files indexed so far
+	 * can still be searched.
+	 */
+	public void pause() {
+		mPaused = true;
+		if (mIndexStep != null) {
+			mIndexStep.cancel();
+		}
+	}
+
+	/**
+	 * Resumes the indexing suspended by {@link #pause()}.
+	 */
+	public void resume() {
+		mPaused = false;
+		indexNext();
+	}
+
+	/**
+	 * Searches every indexed file. A search replaces the previous one.
+	 *
+	 * @param query    The keyword to be found.
+	 * @param listener Receives the results.
+	 */
+	public void search(final String query, final ResultListener listener) {
+		if (mSearchTask != null) {
+			mSearchTask.cancel();
+		}
+		final int generation = ++mSearchGeneration;
+		final ArrayList<Entry> entries = new ArrayList<Entry>();
+		for (Entry entry : mEntries) {
+			if (entry.mIndex != null) {
+				entries.add(entry);
+			}
+		}
+
+		mSearchTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.VISIBLE_PAGE,
+				new RenderExecutor.Task() {
+
+					@Override
+					protected void run() {
+						ArrayList<Result> results = new ArrayList<Result>();
+						for (Entry entry : entries) {
+							if (isCancelled() || results.size() >= MAX_RESULTS) {
+								break;
+							}
+							entry.search(query, results);
+						}
+						if (isCancelled()) {
+							return;
+						}
+						final Result[] out = results.toArray(new Result[results.size()]);
+						mHandler.post(new Runnable() {
+
+							@Override
+							public void run() {
+								if (generation == mSearchGeneration && !mClosed) {
+									listener.onSearchResult(query, out);
+								}
+							}
+						});
+					}
+				});
+	}
+
+	/**
+	 * Stops the indexing and the search, and drops the indexes. The indexes stay on disk.
+	 */
+	public void close() {
+		mClosed = true;
+		if (mSearchTask != null) {
+			mSearchTask.cancel();
+		}
+		if (mIndexStep != null) {
+			mIndexStep.cancel();
+		}
+		for (Entry entry : mEntries) {
+			entry.close();
+		}
+		mEntries.clear();
+	}
+
+	/**
+	 * Starts indexing the first file which is not indexed yet, unless a file is being indexed.
+	 */
+	private void indexNext() {
+		if (mClosed || mPaused || mIndexStep != null) {
+			return;
+		}
+		for (Entry entry : mEntries) {
+			if (entry.mIndex == null && !entry.mFailed) {
+				mIndexStep = new IndexStep(entry);
+				RenderExecutor.getInstance().submit(RenderExecutor.Priority.PREFETCH, mIndexStep);
+				return;
+			}
+		}
+	}
+
+	private void notifyIndexProgress() {
+		if (mIndexListener == null) {
+			return;
+		}
+		int indexed = 0;
+		for (Entry entry : mEntries) {
+			if (entry.mIndex != null) {
+				indexed++;
+			}
+		}
+		mIndexListener.onIndexProgress(indexed, mEntries.size());
+	}
+
+	/**
+	 * A listed file, with its index once it is built.
+	 */
+	private static class Entry {
+		final String mPath;
+		final String mKey;
+		volatile SearchIndex mIndex;
+		volatile File mDir;
+		volatile boolean mClosed;
+		boolean mFailed;
+
+		Entry(String path, String key) {
+			mPath = path;
+			mKey = key;
+		}
+
+		/**
+		 * Adds the pages of this file which contain the keyword. The candidate pages of the index
+		 * are checked against their folded texts, read from a store opened for this search only.
+		 * Runs on a worker thread.
+		 */
+		void search(String query, ArrayList<Result> results) {
+			SearchIndex index = mIndex;
+			int[] pages = index == null ? null : index.findCandidates(query);
+			if (pages == null || pages.length == 0) {
+				return;
+			}
+			String keyword = FoldedText.fold(query);
+			PageTextStore store = new PageTextStore(mDir, index.getPageCount());
+			try {
+				store.openReadOnly();
+				for (int i = 0; i < pages.length && results.size() < MAX_RESULTS; i++) {
+					FoldedText text = store.getFoldedText(pages[i]);
+					int found = text == null ? -1 : text.getText().indexOf(keyword);
+					if (found < 0) {
+						continue;
+					}
+					int start = text.getOriginalStart(found);
+					int end = text.getOriginalEnd(found + keyword.length());
+					String snippet = SearchResultsAdapter.makeSnippet(text.getOriginal(), start, end - start);
+					results.add(new Result(mPath, pages[i], snippet));
+				}
+			} catch (IOException e) {
+				Log.w("PlugPDF", "[WARNING] cannot search " + mPath + ": " + e.getMessage());
+			} finally {
+				store.close();
+			}
+		}
+
+		void close() {
+			mClosed = true;
+			mIndex = null;
+		}
+	}
+
+	/**
+	 * Indexes one file: opens it, extracts the pages not stored yet, then builds the index, one
+	 * small batch per run so that indexing always yields to rendering. The same task is submitted
+	 * again for every batch. Runs on a worker thread.
+	 */
+	private class IndexStep extends RenderExecutor.Step {
+		private final Entry mEntry;
+		private PDFDocument mDoc;
+		private PageTextStore mStore;
+		private File mIndexFile;
+		private SearchIndex.Builder mBuilder;
+		private int mPageCount;
+		private int mNext;
+
+		IndexStep(Entry entry) {
+			mEntry = entry;
+		}
+
+		@Override
+		protected void run() {
+			if (mClosed || mPaused || mEntry.mClosed) {
+				finish(null, false);
+				return;
+			}
+			try {
+				if (mStore == null) {
+					openDocument();
+				} else if (mBuilder == null) {
+					extractPages();
+				} else {
+					indexPages();
+				}
+			} catch (Exception e) {
+				Log.w("PlugPDF", "[WARNING] cannot index " + mEntry.mPath + ": " + e.getMessage());
+				finish(null, true);
+			}
+		}
+
+		@Override
+		protected void onCancelled() {
+			finish(null, false);
+		}
+
+		private void openDocument() throws Exception {
+			File dir = TextExtractionPipeline.getDocumentDirectory(mContext, new File(mEntry.mPath));
+			mIndexFile = new File(dir, SearchIndex.FILE_NAME);
+			mDoc = DocumentHandleCache.getInstance().acquire(mEntry.mPath, "");
+			mPageCount = mDoc.getPageCount();
+			mStore = new PageTextStore(dir, mPageCount);
+			mNext = mStore.open();
+			if (mNext >= mPageCount) {
+				SearchIndex index = SearchIndex.readFrom(mIndexFile, mPageCount);
+				if (index != null) {
+					finish(index, false);
+					return;
+				}
+			}
+			submitNext();
+		}
+
+		private void extractPages() throws IOException {
+			int end = Math.min(mPageCount, mNext + PAGES_PER_BATCH);
+			for (int i = mNext; i < end; i++) {
+				mStore.append(i, mDoc.getPageText(i));
+			}
+			if (end > mNext) {
+				mStore.checkpoint();
+			}
+			mNext = end;
+			submitNext();
+		}
+
+		private void indexPages() {
+			int end = Math.min(mPageCount, mNext + PAGES_PER_BATCH);
+			for (int i = mNext; i < end; i++) {
+				mBuilder.addPage(i, mStore.getFoldedText(i));
+			}
+			mNext = end;
+			if (end < mPageCount) {
+				submitNext();
+				return;
+			}
+
+			SearchIndex index = mBuilder.build();
+			try {
+				index.writeTo(mIndexFile);
+			} catch (IOException e) {
+				Log.w("PlugPDF", "[WARNING] cannot write search index: " + e.getMessage());
+			}
+			finish(index, false);
+		}
+
+		private void submitNext() {
+			if (mBuilder == null && mNext >= mPageCount) {
+				// every page is stored: the document is no longer needed
+				DocumentHandleCache.getInstance().release(mDoc);
+				mDoc = null;
+				mBuilder = new SearchIndex.Builder(mPageCount);
+				mNext = 0;
+			}
+			RenderExecutor.getInstance().submit(RenderExecutor.Priority.PREFETCH, this);
+		}
+
+		/**
+		 * Releases the document and hands the index over to the UI thread.
+		 *
+		 * @param index  The index of the file, or null if it was not built.
+		 * @param failed true if the file cannot be indexed and should not be retried.
+		 */
+		private void finish(final SearchIndex index, final boolean failed) {
+			if (mDoc != null) {
+				DocumentHandleCache.getInstance().release(mDoc);
+				mDoc = null;
+			}
+			if (mStore != null) {
+				mStore.close();
+				mStore = null;
+			}
+			final File dir = mIndexFile != null ? mIndexFile.getParentFile() : null;
+
+			mHandler.post(new Runnable() {
+
+				@Override
+				public void run() {
+					if (mIndexStep == IndexStep.this) {
+						mIndexStep = null;
+					}
+					if (index != null && !mEntry.mClosed) {
+						mEntry.mDir = dir;
+						mEntry.mIndex = index;
+					}
+					if (failed) {
+						mEntry.mFailed = true;
+					}
+					notifyIndexProgress();
+					indexNext();
+				}
+			});
+		}
+	}
+}
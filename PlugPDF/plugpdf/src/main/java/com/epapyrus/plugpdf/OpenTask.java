@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * OpenTask.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import android.os.SystemClock;
+
+import com.epapyrus.plugpdf.core.viewer.DocumentState.OPEN;
+
+/**
+ * A document being opened by {@link SimpleDocumentReader#openFileAsync},
+ * {@link SimpleDocumentReader#openAssetAsync} or {@link SimpleDocumentReader#openUrlAsync}, which can be cancelled and reports its progress and
+ * the time spent in each {@link Phase}.
+ *
+ * All methods must be called from the UI thread; the listener is called on the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class OpenTask {
+
+	/**
+	 * The phases of an open, in order.
+	 */
+	public enum Phase {
+		/**
+		 * Reading the file ahead into the system cache, copying the asset, or downloading the
+		 * document, in the background.
+		 */
+		IO,
+		/** Parsing the document, in the background. */
+		PARSE,
+		/** Rendering the first visible page. */
+		FIRST_PAGE
+	}
+
+	/**
+	 * Receives the progress and the result of an open.
+	 */
+	public interface Listener {
+		/**
+		 * Called when a phase starts, and as it progresses.
+		 *
+		 * @param task    The open.
+		 * @param phase   The current phase.
+		 * @param percent The progress of the phase, from 0 to 100.
+		 */
+		void onOpenProgress(OpenTask task, Phase phase, int percent);
+
+		/**
+		 * Called once when the first page is rendered, the open fails or it is cancelled.
+		 * The timings of the phases are then final.
+		 *
+		 * @param task  The open.
+		 * @param state {@link OPEN#SUCCESS} once the first page is rendered, {@link OPEN#NONE}
+		 *              if the open was cancelled, or the failure.
+		 */
+		void onOpenFinish(OpenTask task, OPEN state);
+	}
+
+	private final SimpleDocumentReader mReader;
+	private final Listener mListener;
+	private final long[] mStartTimes = new long[Phase.values().length];
+	private final long[] mEndTimes = new long[Phase.values().length];
+	private final long mStartTime;
+	private long mEndTime;
+	private Phase mPhase;
+	private OPEN mResult;
+	private volatile boolean mCancelled;
+
+	OpenTask(SimpleDocumentReader reader, Listener listener) {
+		mReader = reader;
+		mListener = listener;
+		mStartTime = SystemClock.elapsedRealtime();
+	}
+
+	/**
+	 * Cancels the open. The reader is cleared if the document was already parsed.
+	 */
+	public void cancel() {
+		if (mCancelled || mResult != null) {
+			return;
+		}
+		mCancelled = true;
+		mReader.cancelOpen(this);
+	}
+
+	/**
+	 * Returns whether {@link #cancel()} has been called.
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * Returns whether the open has finished, see {@link Listener#onOpenFinish}.
+	 */
+	public boolean isFinished() {
+		return mResult != null;
+	}
+
+	/**
+	 * Returns the current phase, or null if no phase has started yet.
+	 */
+	public Phase getPhase() {
+		return mPhase;
+	}
+
+	/**
+	 * Returns the time spent in a phase, in milliseconds.
+	 *
+	 * @param phase The phase.
+	 * @return The duration of the phase so far, or -1 if it has not started.
+	 */
+	public long getPhaseMillis(Phase phase) {
+		int i = phase.ordinal();
+		if (mStartTimes[i] == 0) {
+			return -1;
+		}
+		long end = mEndTimes[i] != 0 ? mEndTimes[i] : SystemClock.elapsedRealtime();
+		return end - mStartTimes[i];
+	}
+
+	/**
+	 * Returns the time since the open started, in milliseconds; once it has finished, its total
+	 * duration, e.g. the time to the first page.
+	 */
+	public long getTotalMillis() {
+		long end = mEndTime != 0 ? mEndTime : SystemClock.elapsedRealtime();
+		return end - mStartTime;
+	}
+
+	/**
+	 * Ends the current phase and starts the given one.
+	 */
+	void startPhase(Phase phase) {
+		long now = SystemClock.elapsedRealtime();
+		if (mPhase != null && mEndTimes[mPhase.ordinal()] == 0) {
+			mEndTimes[mPhase.ordinal()] = now;
+		}
+		mPhase = phase;
+		mStartTimes[phase.ordinal()] = now;
+		notifyProgress(0);
+	}
+
+	void notifyProgress(int percent) {
+		if (mListener != null && mResult == null) {
+			mListener.onOpenProgress(this, mPhase, percent);
+		}
+	}
+
+	/**
+	 * Ends the current phase and reports the result, once.
+	 */
+	void finish(OPEN state) {
+		if (mResult != null) {
+			return;
+		}
+		mEndTime = SystemClock.elapsedRealtime();
+		if (mPhase != null && mEndTimes[mPhase.ordinal()] == 0) {
+			mEndTimes[mPhase.ordinal()] = mEndTime;
+		}
+		mResult = state;
+		if (mListener != null) {
+			mListener.onOpenFinish(this, state);
+		}
+	}
+}
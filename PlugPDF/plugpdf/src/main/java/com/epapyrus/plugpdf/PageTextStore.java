@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * PageTextStore.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+
+/**
+ * Disk store of the extracted page texts of a document.
+ *
+ * The texts are appended in page order to a data file. A separate checkpoint file records how many
+ * pages and bytes of the data file are complete, so that an interrupted extraction resumes from the
+ * last checkpoint and a partially written record is discarded.
+ *
+ * Every text is stored along with its {@link FoldedText}, so that the accent and case insensitive
+ * matching does not fold the pages again on every search.
+ *
+ * Data record: int page index, int record length, then for the text, the folded text and the
+ * offset map of the folding: int byte length, bytes (UTF-8 for the texts).
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class PageTextStore {
+
+	private static final String DATA_FILE_NAME = "pages";
+	private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+	private static final int FILE_VERSION = 3;
+
+	private final File mDataFile;
+	private final File mCheckpointFile;
+	private final int mPageCount;
+	private final long[] mOffsets;
+
+	private RandomAccessFile mData;
+	private int mExtractedPageCount;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param dir       The cache directory of the document.
+	 * @param pageCount The number of pages of the document.
+	 */
+	public PageTextStore(File dir, int pageCount) {
+		mDataFile = new File(dir, DATA_FILE_NAME);
+		mCheckpointFile = new File(dir, CHECKPOINT_FILE_NAME);
+		mPageCount = pageCount;
+		mOffsets = new long[pageCount];
+		Arrays.fill(mOffsets, -1);
+	}
+
+	/**
+	 * Opens the data file and restores the last checkpoint.
+	 *
+	 * @return The number of pages already extracted.
+	 * @throws IOException if the data file cannot be opened.
+	 */
+	public synchronized int open() throws IOException {
+		return open(false);
+	}
+
+	/**
+	 * Opens the data file for reading only, e.g. to read the texts of a document which the
+	 * reader may be extracting at the same time. The pages after the last checkpoint are ignored.
+	 *
+	 * @return The number of pages which can be read.
+	 * @throws IOException if the data file cannot be opened.
+	 */
+	public synchronized int openReadOnly() throws IOException {
+		return open(true);
+	}
+
+	private int open(boolean readOnly) throws IOException {
+		int pages = 0;
+		long length = 0;
+		if (mCheckpointFile.isFile()) {
+			DataInputStream in = new DataInputStream(new FileInputStream(mCheckpointFile));
+			try {
+				if (in.readInt() == FILE_VERSION && in.readInt() == mPageCount) {
+					pages = in.readInt();
+					length = in.readLong();
+				}
+			} catch (IOException e) {
+				pages = 0;
+				length = 0;
+			} finally {
+				in.close();
+			}
+		}
+
+		mData = new RandomAccessFile(mDataFile, readOnly ? "r" : "rw");
+		if (mData.length() < length) {
+			pages = 0;
+			length = 0;
+		}
+		if (!readOnly) {
+			mData.setLength(length);
+		}
+
+		long offset = 0;
+		for (int i = 0; i < pages; i++) {
+			mData.seek(offset);
+			if (mData.readInt() != i) {
+				pages = i;
+				if (!readOnly) {
+					mData.setLength(offset);
+				}
+				break;
+			}
+			mOffsets[i] = offset;
+			offset += 8 + mData.readInt();
+		}
+		mExtractedPageCount = pages;
+		return pages;
+	}
+
+	/**
+	 * Closes the data file.
+	 */
+	public synchronized void close() {
+		if (mData != null) {
+			try {
+				mData.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			mData = null;
+		}
+	}
+
+	/**
+	 * Returns the number of pages whose text is stored.
+	 */
+	public synchronized int getExtractedPageCount() {
+		return mExtractedPageCount;
+	}
+
+	/**
+	 * Appends the text of the next page.
+	 *
+	 * @param pageIdx The (zero-based) page index, which must be {@link #getExtractedPageCount()}.
+	 * @param text    The page text.
+	 * @throws IOException if the text cannot be written.
+	 */
+	public synchronized void append(int pageIdx, String text) throws IOException {
+		if (mData == null || pageIdx != mExtractedPageCount) {
+			throw new IOException("unexpected page " + pageIdx);
+		}
+		FoldedText folded = FoldedText.of(text == null ? "" : text);
+		byte[] original = encode(folded.getOriginal());
+		byte[] foldedText = encode(folded.getText());
+		byte[] offsets = folded.encodeOffsets();
+		long offset = mData.length();
+		mData.seek(offset);
+		mData.writeInt(pageIdx);
+		mData.writeInt(12 + original.length + foldedText.length + offsets.length);
+		mData.writeInt(original.length);
+		mData.write(original);
+		mData.writeInt(foldedText.length);
+		mData.write(foldedText);
+		mData.writeInt(offsets.length);
+		mData.write(offsets);
+		mOffsets[pageIdx] = offset;
+		mExtractedPageCount++;
+	}
+
+	/**
+	 * Makes the appended texts durable, so that a reopened document resumes after them.
+	 *
+	 * @throws IOException if the checkpoint cannot be written.
+	 */
+	public synchronized void checkpoint() throws IOException {
+		if (mData == null) {
+			return;
+		}
+		mData.getFD().sync();
+
+		File temp = new File(mCheckpointFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			out.writeInt(FILE_VERSION);
+			out.writeInt(mPageCount);
+			out.writeInt(mExtractedPageCount);
+			out.writeLong(mData.length());
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(mCheckpointFile)) {
+			temp.delete();
+			throw new IOException("cannot replace " + mCheckpointFile);
+		}
+	}
+
+	/**
+	 * Returns the stored text of a page.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 * @return The page text, or null if the page is not extracted yet.
+	 */
+	public synchronized String getPageText(int pageIdx) {
+		if (mData == null || pageIdx < 0 || pageIdx >= mExtractedPageCount) {
+			return null;
+		}
+		try {
+			mData.seek(mOffsets[pageIdx] + 8);
+			return new String(readBytes(), "UTF-8");
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the stored text of a page with its folding.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 * @return The folded page text, or null if the page is not extracted yet.
+	 */
+	public synchronized FoldedText getFoldedText(int pageIdx) {
+		if (mData == null || pageIdx < 0 || pageIdx >= mExtractedPageCount) {
+			return null;
+		}
+		try {
+			mData.seek(mOffsets[pageIdx] + 8);
+			String original = new String(readBytes(), "UTF-8");
+			String folded = new String(readBytes(), "UTF-8");
+			return FoldedText.decode(original, folded, readBytes());
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// a corrupted offset map
+			return null;
+		}
+	}
+
+	private byte[] readBytes() throws IOException {
+		byte[] bytes = new byte[mData.readInt()];
+		mData.readFully(bytes);
+		return bytes;
+	}
+
+	private static byte[] encode(String text) {
+		try {
+			return text.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
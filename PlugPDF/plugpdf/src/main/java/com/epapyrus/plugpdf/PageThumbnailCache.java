@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * PageThumbnailCache.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.LruCache;
+
+/**
+ * Size-bounded LRU cache of the page slider thumbnails, keyed by (document, page, height).
+ * Bitmaps evicted from the cache are kept in a small pool and reused for the next render of
+ * the same size, so flipping back and forth between pages does not allocate new bitmaps.
+ *
+ * All methods must be called from the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class PageThumbnailCache {
+
+	private static final int MAX_POOL_SIZE = 4;
+
+	private final LruCache<Key, Bitmap> mCache;
+	private final ArrayList<Bitmap> mPool = new ArrayList<Bitmap>(MAX_POOL_SIZE);
+	private final Key mLookupKey = new Key();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxBytes The maximum total size of the cached bitmaps, in bytes.
+	 */
+	public PageThumbnailCache(int maxBytes) {
+		mCache = new LruCache<Key, Bitmap>(maxBytes) {
+
+			@Override
+			protected int sizeOf(Key key, Bitmap bitmap) {
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue, Bitmap newValue) {
+				if (oldValue != newValue) {
+					recycle(oldValue);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached thumbnail of the given page, or null if it has not been rendered yet.
+	 *
+	 * @param doc     The document the page belongs to.
+	 * @param pageIdx The (zero-based) page index.
+	 * @param height  The thumbnail height in pixels.
+	 * @return The cached thumbnail or null.
+	 */
+	public Bitmap get(Object doc, int pageIdx, int height) {
+		mLookupKey.set(doc, pageIdx, height);
+		return mCache.get(mLookupKey);
+	}
+
+	/**
+	 * Stores a rendered thumbnail.
+	 *
+	 * @param doc     The document the page belongs to.
+	 * @param pageIdx The (zero-based) page index.
+	 * @param height  The thumbnail height in pixels.
+	 * @param bitmap  The rendered thumbnail.
+	 */
+	public void put(Object doc, int pageIdx, int height, Bitmap bitmap) {
+		Key key = new Key();
+		key.set(doc, pageIdx, height);
+		mCache.put(key, bitmap);
+	}
+
+	/**
+	 * Returns a cleared bitmap of the given size, taken from the pool if one is available.
+	 *
+	 * @param width  The bitmap width.
+	 * @param height The bitmap height.
+	 * @param config The bitmap config.
+	 * @param inUse  A bitmap which is currently displayed and must not be reused. May be null.
+	 * @return A bitmap ready to be drawn into.
+	 */
+	public Bitmap obtain(int width, int height, Bitmap.Config config, Bitmap inUse) {
+		for (int i = mPool.size() - 1; i >= 0; i--) {
+			Bitmap bitmap = mPool.get(i);
+			if (bitmap != inUse && bitmap.getWidth() == width
+					&& bitmap.getHeight() == height && bitmap.getConfig() == config) {
+				mPool.remove(i);
+				bitmap.eraseColor(Color.TRANSPARENT);
+				return bitmap;
+			}
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * Returns a bitmap which is no longer referenced by the cache to the pool.
+	 *
+	 * @param bitmap The bitmap to be reused.
+	 */
+	public void recycle(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || mPool.contains(bitmap)) {
+			return;
+		}
+		if (mPool.size() >= MAX_POOL_SIZE) {
+			mPool.remove(0);
+		}
+		mPool.add(bitmap);
+	}
+
+	/**
+	 * Drops all the cached thumbnails and pooled bitmaps.
+	 */
+	public void clear() {
+		mCache.evictAll();
+		mPool.clear();
+	}
+
+	/**
+	 * Cache key. A single instance is reused for lookups so that hits do not allocate.
+	 */
+	private static class Key {
+		private Object mDoc;
+		private int mPageIdx;
+		private int mHeight;
+
+		void set(Object doc, int pageIdx, int height) {
+			mDoc = doc;
+			mPageIdx = pageIdx;
+			mHeight = height;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return mDoc == other.mDoc && mPageIdx == other.mPageIdx && mHeight == other.mHeight;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = System.identityHashCode(mDoc);
+			hash = hash * 31 + mPageIdx;
+			return hash * 31 + mHeight;
+		}
+	}
+}
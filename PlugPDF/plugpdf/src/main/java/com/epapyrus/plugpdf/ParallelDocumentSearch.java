@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * ParallelDocumentSearch.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+import com.epapyrus.plugpdf.core.SearchInfo;
+
+/**
+ * Searches a file on several additional {@link PDFDocument} handles at once.
+ *
+ * Every method of a PDFDocument is synchronized on its native handle, so a search on the document
+ * displayed by the reader uses one core and makes the page rendering wait. This class opens its own
+ * handles on the same file, one per worker thread, and hands the pages out to them in small blocks.
+ * The handles are taken from and given back to the {@link DocumentHandleCache}, so a file searched
+ * again, or indexed by the {@link LibrarySearch}, is not parsed again.
+ * The hits are delivered in the order of the searched pages, as soon as all the pages before them
+ * have been searched. If no handle can be opened, e.g. because the file has been removed since, the
+ * pages are searched on the displayed document instead, like without parallel search.
+ *
+ * {@link #search} and {@link #close} must be called from the UI thread; the listeners are called
+ * on the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class ParallelDocumentSearch {
+
+	/**
+	 * Receives the hits of a search.
+	 */
+	interface Listener {
+		/**
+		 * Called for every page containing the keyword, in the order of the searched pages.
+		 *
+		 * @param info The hit areas of the page.
+		 * @return true to continue the search; false to stop it.
+		 */
+		boolean onHit(SearchInfo info);
+
+		/**
+		 * Called once when every page has been searched or {@link #onHit} stopped the search.
+		 * Not called when the search is cancelled.
+		 */
+		void onFinish();
+	}
+
+	private static final int PAGES_PER_BLOCK = 4;
+
+	private final String mFilePath;
+	private final String mPassword;
+	private final PDFDocument mFallbackDoc;
+	private final int mHandleCount;
+	private final ExecutorService mWorkers;
+	private final ConcurrentLinkedQueue<PDFDocument> mHandles = new ConcurrentLinkedQueue<PDFDocument>();
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private int mOpenedHandles;
+	private volatile boolean mHasHandle;
+	private volatile boolean mClosed;
+	private volatile SearchResultCache mResultCache;
+
+	/**
+	 * Constructor. The handles are opened when the first search runs.
+	 *
+	 * @param filePath    The path of the PDF file.
+	 * @param password    The password of the file, if encrypted.
+	 * @param fallbackDoc The displayed document, searched if no handle can be opened. It must stay
+	 *                    open until {@link #close()}.
+	 * @param handleCount The number of additional handles and worker threads.
+	 */
+	public ParallelDocumentSearch(String filePath, String password, PDFDocument fallbackDoc,
+								  int handleCount) {
+		mFilePath = filePath;
+		mPassword = password;
+		mFallbackDoc = fallbackDoc;
+		mHandleCount = Math.max(1, handleCount);
+		mWorkers = Executors.newFixedThreadPool(mHandleCount, new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "PlugPDF-Search-" + mCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the cache which the workers look the pages up in before searching them.
+	 *
+	 * @param cache The {@link SearchResultCache} of the document, or null.
+	 */
+	public void setResultCache(SearchResultCache cache) {
+		mResultCache = cache;
+	}
+
+	/**
+	 * Starts searching the given pages. Several searches can run at once; they share the handles.
+	 *
+	 * @param keyword  The string to be found.
+	 * @param pages    The (zero-based) indexes of the pages to search, in the order the hits
+	 *                 should be delivered.
+	 * @param unAccent true to also match the keyword without accents.
+	 * @param listener Receives the hits.
+	 * @return The search, which can be used to cancel it.
+	 */
+	public Search search(String keyword, int[] pages, boolean unAccent, Listener listener) {
+		Search search = new Search(keyword, pages, unAccent, listener);
+		if (mClosed) {
+			search.cancel();
+			return search;
+		}
+		for (int i = 0; i < mHandleCount; i++) {
+			mWorkers.execute(search);
+		}
+		search.postDeliver();
+		return search;
+	}
+
+	/**
+	 * Cancels the searches and gives the handles back to the {@link DocumentHandleCache}.
+	 */
+	public void close() {
+		mWorkers.shutdown();
+		synchronized (this) {
+			mClosed = true;
+			PDFDocument doc;
+			while ((doc = mHandles.poll()) != null) {
+				DocumentHandleCache.getInstance().release(doc);
+			}
+		}
+	}
+
+	/**
+	 * Returns a handle for the calling worker, opening it if needed. There is one handle per
+	 * worker, so a worker only gets none if its handle could not be opened.
+	 */
+	private PDFDocument acquireHandle() {
+		PDFDocument doc = mHandles.poll();
+		if (doc != null) {
+			return doc;
+		}
+		synchronized (this) {
+			if (mOpenedHandles >= mHandleCount) {
+				return null;
+			}
+			mOpenedHandles++;
+		}
+		try {
+			doc = DocumentHandleCache.getInstance().acquire(mFilePath, mPassword);
+			mHasHandle = true;
+			return doc;
+		} catch (Exception e) {
+			Log.w("PlugPDF", "[WARNING] cannot open search handle: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private synchronized void releaseHandle(PDFDocument doc) {
+		if (doc == mFallbackDoc) {
+			return;
+		}
+		if (mClosed) {
+			DocumentHandleCache.getInstance().release(doc);
+		} else {
+			mHandles.add(doc);
+		}
+	}
+
+	/**
+	 * One search, run by every worker. The workers take blocks of pages in order, so the earliest
+	 * pages are searched first and the hits can be delivered as soon as they are in order.
+	 */
+	class Search implements Runnable {
+		private final String mKeyword;
+		private final int[] mPages;
+		private final boolean mUnAccent;
+		private final Listener mListener;
+		private final SearchInfo[] mHits;
+		private final boolean[] mDone;
+		private final AtomicInteger mNextBlock = new AtomicInteger();
+		private volatile boolean mCancelled;
+		private int mDelivered;
+		private boolean mDeliverPosted;
+		private boolean mFinished;
+
+		Search(String keyword, int[] pages, boolean unAccent, Listener listener) {
+			mKeyword = keyword;
+			mPages = pages;
+			mUnAccent = unAccent;
+			mListener = listener;
+			mHits = new SearchInfo[pages.length];
+			mDone = new boolean[pages.length];
+		}
+
+		/**
+		 * Cancels the search. No more hits are delivered. Must be called from the UI thread.
+		 */
+		public void cancel() {
+			mCancelled = true;
+		}
+
+		@Override
+		public void run() {
+			if (mCancelled || mClosed) {
+				return;
+			}
+			PDFDocument doc = acquireHandle();
+			if (doc == null) {
+				if (mHasHandle) {
+					// the workers which have a handle search every page
+					return;
+				}
+				// otherwise no worker would mark the pages done, and the search would never finish
+				doc = mFallbackDoc;
+			}
+			try {
+				while (!mCancelled && !mClosed) {
+					int start = mNextBlock.getAndIncrement() * PAGES_PER_BLOCK;
+					if (start >= mPages.length) {
+						break;
+					}
+					int end = Math.min(mPages.length, start + PAGES_PER_BLOCK);
+					for (int i = start; i < end && !mCancelled; i++) {
+						SearchResultCache cache = mResultCache;
+						RectF[] areas = cache != null
+								? cache.search(doc, mPages[i], mKeyword, mUnAccent)
+								: doc.getSearchPage(mPages[i], mKeyword, mUnAccent);
+						synchronized (this) {
+							if (areas != null && areas.length > 0) {
+								mHits[i] = new SearchInfo(mKeyword, mPages[i], areas);
+							}
+							mDone[i] = true;
+						}
+						postDeliver();
+					}
+				}
+			} finally {
+				releaseHandle(doc);
+			}
+		}
+
+		private synchronized void postDeliver() {
+			if (mDeliverPosted) {
+				return;
+			}
+			mDeliverPosted = true;
+			mHandler.post(mDeliver);
+		}
+
+		/**
+		 * Delivers the hits of the pages searched so far in order, on the UI thread.
+		 */
+		private final Runnable mDeliver = new Runnable() {
+
+			@Override
+			public void run() {
+				while (!mCancelled && !mClosed && !mFinished) {
+					SearchInfo hit;
+					synchronized (Search.this) {
+						if (mDelivered >= mPages.length) {
+							mFinished = true;
+							break;
+						}
+						if (!mDone[mDelivered]) {
+							mDeliverPosted = false;
+							return;
+						}
+						hit = mHits[mDelivered];
+						mHits[mDelivered] = null;
+						mDelivered++;
+					}
+					if (hit != null && !mListener.onHit(hit)) {
+						mCancelled = true;
+						mFinished = true;
+					}
+				}
+				if (mFinished) {
+					mListener.onFinish();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * QuerySearch.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+import com.epapyrus.plugpdf.core.SearchInfo;
+
+/**
+ * Runs {@link TextQuery} searches over the extracted page texts.
+ *
+ * The pages are matched in blocks: the pages of a block are matched against their stored text at
+ * once on a pool of worker threads, then the pages which match are located on the document with an
+ * exact search of the matched texts, through the {@link SearchResultCache} of the document, since
+ * {@link PDFDocument#extractTextRects} only locates text by area. The hits of a block are delivered
+ * in page order before the next block starts, so that the search yields to the page rendering
+ * between blocks.
+ *
+ * {@link #search} and {@link #close} must be called from the UI thread; the listeners are called
+ * on the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class QuerySearch {
+
+	private static final int PAGES_PER_BLOCK = 32;
+	private static final int MAX_WORKERS = 4;
+
+	private final TextExtractionPipeline mPipeline;
+	private final PDFDocument mDoc;
+	private final SearchResultCache mResultCache;
+	private final ExecutorService mWorkers;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private volatile boolean mClosed;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pipeline    The text extraction of the document, or null to extract the texts from
+	 *                    the document.
+	 * @param doc         The document.
+	 * @param resultCache The cache of the exact searches of the document.
+	 */
+	public QuerySearch(TextExtractionPipeline pipeline, PDFDocument doc, SearchResultCache resultCache) {
+		mPipeline = pipeline;
+		mDoc = doc;
+		mResultCache = resultCache;
+		int count = Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+		mWorkers = Executors.newFixedThreadPool(count, new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "PlugPDF-Query-" + mCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts matching the given pages.
+	 *
+	 * @param query    The query.
+	 * @param pages    The (zero-based) indexes of the pages to search, in the order the hits
+	 *                 should be delivered.
+	 * @param listener Receives the hits.
+	 * @return The task of the search, which can be used to cancel it.
+	 */
+	public RenderExecutor.Task search(final TextQuery query, final int[] pages,
+									  final ParallelDocumentSearch.Listener listener) {
+		// the same task is submitted again for every block, so that it cancels the whole search
+		return submit(new RenderExecutor.Task() {
+			private int mFrom;
+
+			@Override
+			protected void run() {
+				final int end = Math.min(pages.length, mFrom + PAGES_PER_BLOCK);
+				final SearchInfo[] hits = matchPages(query, pages, mFrom, end, this);
+				if (hits == null) {
+					return;
+				}
+
+				final RenderExecutor.Task task = this;
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if (task.isCancelled() || mClosed) {
+							return;
+						}
+						for (SearchInfo hit : hits) {
+							if (hit != null && !listener.onHit(hit)) {
+								listener.onFinish();
+								return;
+							}
+						}
+						if (end < pages.length) {
+							mFrom = end;
+							submit(task);
+						} else {
+							listener.onFinish();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Stops the workers. The running searches end without calling their listener.
+	 */
+	public void close() {
+		mClosed = true;
+		mWorkers.shutdownNow();
+	}
+
+	private RenderExecutor.Task submit(RenderExecutor.Task task) {
+		return RenderExecutor.getInstance().submit(RenderExecutor.Priority.THUMBNAIL, task);
+	}
+
+	/**
+	 * Matches a block of pages on the workers and waits for them. Runs on a worker thread.
+	 *
+	 * @return The hits of the block, by position, or null if the search was cancelled.
+	 */
+	private SearchInfo[] matchPages(final TextQuery query, int[] pages, int from, int end,
+									RenderExecutor.Task task) {
+		List<Callable<SearchInfo>> calls = new ArrayList<Callable<SearchInfo>>(end - from);
+		for (int i = from; i < end; i++) {
+			final int pageIdx = pages[i];
+			calls.add(new Callable<SearchInfo>() {
+
+				@Override
+				public SearchInfo call() {
+					return matchPage(query, pageIdx);
+				}
+			});
+		}
+
+		SearchInfo[] hits = new SearchInfo[end - from];
+		try {
+			List<Future<SearchInfo>> results = mWorkers.invokeAll(calls);
+			for (int i = 0; i < hits.length; i++) {
+				if (task.isCancelled() || mClosed) {
+					return null;
+				}
+				hits[i] = results.get(i).get();
+			}
+		} catch (InterruptedException e) {
+			return null;
+		} catch (RejectedExecutionException e) {
+			return null;
+		} catch (ExecutionException e) {
+			Log.w("PlugPDF", "[WARNING] query failed: " + e.getCause());
+			return null;
+		}
+		return hits;
+	}
+
+	/**
+	 * Matches one page and locates the matched texts. Runs on a worker of the pool.
+	 */
+	private SearchInfo matchPage(TextQuery query, int pageIdx) {
+		FoldedText text = mPipeline != null ? mPipeline.getFoldedText(pageIdx) : null;
+		if (text == null) {
+			String pageText = mDoc.getPageText(pageIdx);
+			text = FoldedText.of(pageText != null ? pageText : "");
+		}
+
+		ArrayList<RectF> areas = new ArrayList<RectF>();
+		for (String form : query.match(text)) {
+			if (mClosed) {
+				return null;
+			}
+			// the extracted text may break lines where the native text has a space
+			String keyword = form.replaceAll("\\s+", " ");
+			for (RectF area : mResultCache.search(mDoc, pageIdx, keyword, false)) {
+				if (!areas.contains(area)) {
+					areas.add(area);
+				}
+			}
+		}
+		if (areas.isEmpty()) {
+			return null;
+		}
+		return new SearchInfo(query.getText(), pageIdx, areas.toArray(new RectF[areas.size()]));
+	}
+}
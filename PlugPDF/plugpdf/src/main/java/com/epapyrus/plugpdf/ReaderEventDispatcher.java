@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * ReaderEventDispatcher.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.MotionEvent;
+
+import com.epapyrus.plugpdf.core.viewer.BasePlugPDFDisplay.PageDisplayMode;
+import com.epapyrus.plugpdf.core.viewer.DocumentState;
+import com.epapyrus.plugpdf.core.viewer.ReaderListener;
+
+/**
+ * {@link ReaderListener} which forwards the events of a {@link com.epapyrus.plugpdf.core.viewer.ReaderView}
+ * to several listeners.
+ *
+ * {@link #onScroll}, {@link #onGoToPage} and {@link #onChangeZoom} are coalesced: they are delivered at
+ * most once per display frame, with the last value winning. The other events are delivered immediately,
+ * after any coalesced event still pending so that the order is preserved. Dispatching does not allocate.
+ *
+ * All methods must be called from the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class ReaderEventDispatcher implements ReaderListener {
+
+	private static final long FRAME_DELAY_MS = 16;
+
+	private ReaderListener[] mListeners = new ReaderListener[0];
+
+	private boolean mScrollPending;
+	private int mScrollX;
+	private int mScrollY;
+
+	private boolean mGoToPagePending;
+	private int mPageIdx;
+	private int mPageCount;
+
+	private boolean mZoomPending;
+	private double mZoomLevel;
+
+	private boolean mFrameScheduled;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private Object mFrameCallback;
+
+	private final Runnable mFlushRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			mFrameScheduled = false;
+			flush();
+		}
+	};
+
+	/**
+	 * Adds a listener. Listeners are notified in the order they were added.
+	 *
+	 * @param listener An implementation of ReaderListener.
+	 */
+	public void addListener(ReaderListener listener) {
+		for (ReaderListener l : mListeners) {
+			if (l == listener) {
+				return;
+			}
+		}
+		ReaderListener[] listeners = new ReaderListener[mListeners.length + 1];
+		System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+		listeners[mListeners.length] = listener;
+		mListeners = listeners;
+	}
+
+	/**
+	 * Removes a listener added with {@link #addListener}.
+	 *
+	 * @param listener The listener to remove.
+	 */
+	public void removeListener(ReaderListener listener) {
+		for (int i = 0; i < mListeners.length; i++) {
+			if (mListeners[i] == listener) {
+				ReaderListener[] listeners = new ReaderListener[mListeners.length - 1];
+				System.arraycopy(mListeners, 0, listeners, 0, i);
+				System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+				mListeners = listeners;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Delivers the pending coalesced events now.
+	 */
+	public void flush() {
+		ReaderListener[] listeners = mListeners;
+
+		if (mGoToPagePending) {
+			mGoToPagePending = false;
+			for (ReaderListener l : listeners) {
+				l.onGoToPage(mPageIdx, mPageCount);
+			}
+		}
+		if (mZoomPending) {
+			mZoomPending = false;
+			for (ReaderListener l : listeners) {
+				l.onChangeZoom(mZoomLevel);
+			}
+		}
+		if (mScrollPending) {
+			mScrollPending = false;
+			for (ReaderListener l : listeners) {
+				l.onScroll(mScrollX, mScrollY);
+			}
+		}
+	}
+
+	/**
+	 * Drops the pending coalesced events without delivering them, and the frame scheduled to
+	 * deliver them, e.g. when the reader is cleared.
+	 */
+	public void cancel() {
+		mGoToPagePending = false;
+		mZoomPending = false;
+		mScrollPending = false;
+		if (!mFrameScheduled) {
+			return;
+		}
+		mFrameScheduled = false;
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			FrameCallbackCompat.remove(mFrameCallback);
+		} else {
+			mHandler.removeCallbacks(mFlushRunnable);
+		}
+	}
+
+	@Override
+	public void onScroll(int distanceX, int distanceY) {
+		mScrollX = distanceX;
+		mScrollY = distanceY;
+		mScrollPending = true;
+		scheduleFrame();
+	}
+
+	@Override
+	public void onGoToPage(int pageIdx, int pageCount) {
+		mPageIdx = pageIdx;
+		mPageCount = pageCount;
+		mGoToPagePending = true;
+		scheduleFrame();
+	}
+
+	@Override
+	public void onChangeZoom(double zoomLevel) {
+		mZoomLevel = zoomLevel;
+		mZoomPending = true;
+		scheduleFrame();
+	}
+
+	@Override
+	public void onLoadFinish(DocumentState.OPEN state) {
+		flush();
+		for (ReaderListener l : mListeners) {
+			l.onLoadFinish(state);
+		}
+	}
+
+	@Override
+	public void onSearchFinish(boolean success) {
+		flush();
+		for (ReaderListener l : mListeners) {
+			l.onSearchFinish(success);
+		}
+	}
+
+	@Override
+	public void onSingleTapUp(MotionEvent e) {
+		flush();
+		for (ReaderListener l : mListeners) {
+			l.onSingleTapUp(e);
+		}
+	}
+
+	@Override
+	public void onLongPress(MotionEvent e) {
+		flush();
+		for (ReaderListener l : mListeners) {
+			l.onLongPress(e);
+		}
+	}
+
+	@Override
+	public void onDoubleTapUp(MotionEvent e) {
+		flush();
+		for (ReaderListener l : mListeners) {
+			l.onDoubleTapUp(e);
+		}
+	}
+
+	@Override
+	public void onChangeDisplayMode(PageDisplayMode mode, int pageIndex) {
+		flush();
+		for (ReaderListener l : mListeners) {
+			l.onChangeDisplayMode(mode, pageIndex);
+		}
+	}
+
+	private void scheduleFrame() {
+		if (mFrameScheduled) {
+			return;
+		}
+		mFrameScheduled = true;
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			if (mFrameCallback == null) {
+				mFrameCallback = FrameCallbackCompat.create(mFlushRunnable);
+			}
+			FrameCallbackCompat.post(mFrameCallback);
+		} else {
+			mHandler.postDelayed(mFlushRunnable, FRAME_DELAY_MS);
+		}
+	}
+
+	/**
+	 * Wraps {@link Choreographer}, which is only available from API 16.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private static class FrameCallbackCompat {
+
+		static Object create(final Runnable runnable) {
+			return new Choreographer.FrameCallback() {
+
+				@Override
+				public void doFrame(long frameTimeNanos) {
+					runnable.run();
+				}
+			};
+		}
+
+		static void post(Object callback) {
+			Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) callback);
+		}
+
+		static void remove(Object callback) {
+			Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) callback);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * ReaderSession.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.File;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+import com.epapyrus.plugpdf.core.viewer.BasePlugPDFDisplay.PageDisplayMode;
+
+/**
+ * The open document of a {@link SimpleDocumentReader}, retained while its activity is recreated,
+ * e.g. after a configuration change which the activity does not handle itself.
+ *
+ * A session is obtained with {@link SimpleDocumentReader#retainSession()}, typically from
+ * {@link android.app.Activity#onRetainNonConfigurationInstance()}, and given to the reader of the
+ * new activity with {@link SimpleDocumentReader#restoreSession(ReaderSession)}. The document is
+ * neither saved nor released in between. The page thumbnails already rendered are kept, and the
+ * bitmap of the displayed page is shown until the new reader renders the page again; the other
+ * rendered pages are rendered again.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class ReaderSession {
+
+	final PDFDocument mDoc;
+	final String mFilePath;
+	final String mPassword;
+	final File mRetryFile;
+	final ParcelFileDescriptor mStreamDescriptor;
+	final int mPageIdx;
+	final PageDisplayMode mDisplayMode;
+	final Bundle mControlState;
+	final PageThumbnailCache mThumbnailCache;
+	final Bitmap mPageBitmap;
+
+	ReaderSession(PDFDocument doc, String filePath, String password, File retryFile,
+				  ParcelFileDescriptor streamDescriptor, int pageIdx, PageDisplayMode displayMode,
+				  Bundle controlState, PageThumbnailCache thumbnailCache, Bitmap pageBitmap) {
+		mDoc = doc;
+		mFilePath = filePath;
+		mPassword = password;
+		mRetryFile = retryFile;
+		mStreamDescriptor = streamDescriptor;
+		mPageIdx = pageIdx;
+		mDisplayMode = displayMode;
+		mControlState = controlState;
+		mThumbnailCache = thumbnailCache;
+		mPageBitmap = pageBitmap;
+	}
+
+	/**
+	 * Returns the retained document.
+	 */
+	public PDFDocument getDocument() {
+		return mDoc;
+	}
+
+	/**
+	 * Returns the (zero-based) index of the page which was displayed.
+	 */
+	public int getPageIdx() {
+		return mPageIdx;
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * RenderExecutor.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.PriorityQueue;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Shared executor for the background work of the reader (page rendering, thumbnails, prefetching).
+ *
+ * Tasks are ordered by {@link Priority} and then by submission order. The queue is bounded: when it
+ * is full, the task with the lowest priority is dropped, or the new task if none has a lower priority.
+ * A {@link Step} of a longer job is never dropped, since the job would stop. A dropped or cancelled
+ * task is never run; its {@link Task#onCancelled()} is called instead.
+ *
+ * A running task is not preempted. When there are several workers, one of them only runs
+ * {@link Priority#VISIBLE_PAGE} and {@link Priority#THUMBNAIL} tasks, so these never wait for
+ * {@link Priority#PREFETCH} work, however long, but only for each other. Long prefetch jobs are
+ * still split into short steps, so that they hold the other workers only briefly.
+ *
+ * Unlike {@link android.os.AsyncTask#execute}, work submitted here does not wait behind the other
+ * AsyncTasks of the application.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public class RenderExecutor {
+
+	/**
+	 * Priority classes, from the most to the least urgent.
+	 */
+	public enum Priority {
+		VISIBLE_PAGE, THUMBNAIL, PREFETCH
+	}
+
+	/**
+	 * A unit of work. The task object is also its cancellation token.
+	 */
+	public abstract static class Task implements Comparable<Task> {
+		private volatile boolean mCancelled;
+		private volatile RenderExecutor mExecutor;
+		private Priority mPriority;
+		private long mSequence;
+
+		/**
+		 * Cancels the task. A queued task is removed from the queue at once; a running task should
+		 * check {@link #isCancelled()} and return early.
+		 */
+		public final void cancel() {
+			mCancelled = true;
+			RenderExecutor executor = mExecutor;
+			if (executor != null && executor.remove(this)) {
+				onCancelled();
+			}
+		}
+
+		/**
+		 * Returns whether {@link #cancel()} has been called or the task was dropped from the queue.
+		 */
+		public final boolean isCancelled() {
+			return mCancelled;
+		}
+
+		/**
+		 * Runs the task on a worker thread.
+		 */
+		protected abstract void run();
+
+		/**
+		 * Called on the worker, submitting or cancelling thread when the task is dropped without
+		 * running. Called once per submission.
+		 */
+		protected void onCancelled() {
+		}
+
+		boolean isDroppable() {
+			return true;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			int order = mPriority.compareTo(other.mPriority);
+			if (order != 0) {
+				return order;
+			}
+			return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A step of a longer job, which queues the next step itself when it runs. A step is never dropped
+	 * when the queue is full, so a job only stops when its step is cancelled. A job has at most one
+	 * queued step, so the steps may exceed the capacity of the queue by the number of jobs.
+	 */
+	public abstract static class Step extends Task {
+
+		@Override
+		final boolean isDroppable() {
+			return false;
+		}
+	}
+
+	private static final int DEFAULT_CAPACITY = 64;
+
+	private static int sWorkerCount = 2;
+	private static RenderExecutor sInstance;
+
+	private final PriorityQueue<Task> mQueue;
+	private final int mCapacity;
+	private long mSequence;
+
+	/**
+	 * Sets the number of worker threads of the shared executor. Must be called before
+	 * {@link #getInstance()} is first used; later calls have no effect.
+	 *
+	 * @param count The number of worker threads (at least 1). With 2 or more, one worker does
+	 *              not run prefetch tasks.
+	 */
+	public static synchronized void setWorkerCount(int count) {
+		sWorkerCount = Math.max(1, count);
+	}
+
+	/**
+	 * Returns the executor shared by all the readers of the process.
+	 */
+	public static synchronized RenderExecutor getInstance() {
+		if (sInstance == null) {
+			sInstance = new RenderExecutor(sWorkerCount, DEFAULT_CAPACITY);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param workerCount The number of worker threads. With 2 or more, the first one is reserved
+	 *                    for the visible pages and the thumbnails.
+	 * @param capacity    The maximum number of queued tasks.
+	 */
+	public RenderExecutor(int workerCount, int capacity) {
+		mCapacity = capacity;
+		mQueue = new PriorityQueue<Task>(capacity);
+
+		for (int i = 0; i < workerCount; i++) {
+			Thread worker = new Thread(new Worker(i == 0 && workerCount > 1), "PlugPDF-Render-" + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queues a task. A task object may be submitted again once it has run or been dropped. A
+	 * cancelled task stays cancelled: it is not queued, and its {@link Task#onCancelled()} is called,
+	 * so a task which submits itself again stops once cancelled. Use {@link #resubmit} to run a
+	 * cancelled task again.
+	 *
+	 * @param priority The priority class of the task.
+	 * @param task     The task to run.
+	 * @return The task, which can be used to cancel it.
+	 */
+	public Task submit(Priority priority, Task task) {
+		Task dropped = null;
+		synchronized (mQueue) {
+			task.mPriority = priority;
+			task.mSequence = mSequence++;
+
+			if (task.isCancelled()) {
+				dropped = task;
+			} else if (mQueue.size() >= mCapacity && task.isDroppable()) {
+				dropped = task;
+				for (Task queued : mQueue) {
+					if (queued.isDroppable() && queued.compareTo(dropped) > 0) {
+						dropped = queued;
+					}
+				}
+			}
+
+			if (dropped != task) {
+				task.mExecutor = this;
+				mQueue.add(task);
+				// the reserved worker may be woken in vain by a prefetch task
+				mQueue.notifyAll();
+			}
+			if (dropped != null && dropped != task) {
+				mQueue.remove(dropped);
+			}
+		}
+
+		if (dropped != null) {
+			dropped.mCancelled = true;
+			dropped.onCancelled();
+		}
+		return task;
+	}
+
+	/**
+	 * Queues a task again, clearing its cancelled state, e.g. a reused task which may have been
+	 * dropped. The task must not be queued.
+	 *
+	 * @param priority The priority class of the task.
+	 * @param task     The task to run.
+	 * @return The task, which can be used to cancel it.
+	 */
+	public Task resubmit(Priority priority, Task task) {
+		task.mCancelled = false;
+		return submit(priority, task);
+	}
+
+	/**
+	 * Removes a queued task.
+	 *
+	 * @return true if the task was queued; otherwise false.
+	 */
+	private boolean remove(Task task) {
+		synchronized (mQueue) {
+			return mQueue.remove(task);
+		}
+	}
+
+	private class Worker implements Runnable {
+		private final boolean mReserved;
+
+		/**
+		 * @param reserved true if the worker only runs the visible page and thumbnail tasks.
+		 */
+		Worker(boolean reserved) {
+			mReserved = reserved;
+		}
+
+		/**
+		 * Returns whether the worker can run the task at the head of the queue. The head has
+		 * the highest priority, so a reserved worker has nothing to run when it is a prefetch.
+		 */
+		private boolean canRunNext() {
+			Task next = mQueue.peek();
+			return next != null && !(mReserved && next.mPriority == Priority.PREFETCH);
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+			while (true) {
+				Task task;
+				synchronized (mQueue) {
+					while (!canRunNext()) {
+						try {
+							mQueue.wait();
+						} catch (InterruptedException e) {
+							// keep serving
+						}
+					}
+					task = mQueue.poll();
+				}
+
+				if (task.isCancelled()) {
+					task.onCancelled();
+					continue;
+				}
+
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Log.e("PlugPDF", "[ERROR] render task failed", e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * SearchIndex.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+
+/**
+ * Inverted index of the words of a document: for every word, the sorted list of the pages
+ * containing it.
+ *
+ * The index only selects candidate pages. A keyword matches the candidates of a page if, after
+ * case and accent folding, its first word is a substring of some word of the page and each other
+ * word is the prefix of some word of the page, since only the first word may start inside a word of
+ * the text. This is a superset of what the native search finds, so the hits themselves are still
+ * located with {@link PDFDocument#getSearchPage} on the candidate pages only.
+ *
+ * Prefixes are looked up by binary search in the sorted terms. Substrings are looked up through the
+ * character pairs of the terms: only the terms containing every pair of the word are compared.
+ *
+ * Chinese, Japanese and Korean texts are not split into words by spaces, so their runs are indexed
+ * as n-grams instead: every character and every pair of consecutive characters is a term, and a
+ * keyword run selects the pages containing all its pairs, looked up directly in the sorted terms.
+ * Right-to-left words are indexed in both directions, since the extracted text of such pages may be
+ * in visual order (see {@link DocumentSearcher#toNativeKeyword(String)}).
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class SearchIndex {
+
+	/**
+	 * Name of the index file in the cache directory of a document.
+	 */
+	static final String FILE_NAME = "index";
+
+	private static final int FILE_MAGIC = 0x50504958; // "PPIX"
+	private static final int FILE_VERSION = 3;
+
+	private final int mPageCount;
+	private final String[] mTerms;
+	private final int[][] mPostings;
+	// character pair (high char << 16 | low char) -> sorted indexes of the terms containing it
+	private final SparseArray<int[]> mPairTerms;
+
+	private SearchIndex(int pageCount, String[] terms, int[][] postings) {
+		mPageCount = pageCount;
+		mTerms = terms;
+		mPostings = postings;
+		mPairTerms = indexPairs(terms);
+	}
+
+	/**
+	 * Maps every character pair of the terms, except the CJK n-grams which are looked up directly,
+	 * to the terms containing it.
+	 */
+	private static SparseArray<int[]> indexPairs(String[] terms) {
+		SparseIntArray counts = new SparseIntArray();
+		for (int i = 0; i < terms.length; i++) {
+			String term = terms[i];
+			if (isCjk(term.charAt(0))) {
+				continue;
+			}
+			for (int j = 0; j + 1 < term.length(); j++) {
+				int pair = pairAt(term, j);
+				if (!containsPair(term, pair, j)) {
+					counts.put(pair, counts.get(pair) + 1);
+				}
+			}
+		}
+
+		SparseArray<int[]> pairTerms = new SparseArray<int[]>(counts.size());
+		for (int i = 0; i < counts.size(); i++) {
+			pairTerms.append(counts.keyAt(i), new int[counts.valueAt(i)]);
+		}
+		SparseIntArray filled = new SparseIntArray(counts.size());
+		for (int i = 0; i < terms.length; i++) {
+			String term = terms[i];
+			if (isCjk(term.charAt(0))) {
+				continue;
+			}
+			for (int j = 0; j + 1 < term.length(); j++) {
+				int pair = pairAt(term, j);
+				if (!containsPair(term, pair, j)) {
+					int n = filled.get(pair);
+					pairTerms.get(pair)[n] = i;
+					filled.put(pair, n + 1);
+				}
+			}
+		}
+		return pairTerms;
+	}
+
+	private static int pairAt(String text, int idx) {
+		return text.charAt(idx) << 16 | text.charAt(idx + 1);
+	}
+
+	/**
+	 * Returns whether the pair occurs in the text before the given index.
+	 */
+	private static boolean containsPair(String text, int pair, int end) {
+		for (int i = 0; i < end; i++) {
+			if (pairAt(text, i) == pair) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of pages of the indexed document.
+	 */
+	public int getPageCount() {
+		return mPageCount;
+	}
+
+	/**
+	 * Returns the sorted indexes of the pages which may contain the keyword.
+	 *
+	 * @param keyword The searched keyword.
+	 * @return Candidate pages, or null if the index cannot answer this keyword
+	 * (e.g. the keyword has no letter or digit) and every page must be searched.
+	 */
+	public int[] findCandidates(String keyword) {
+		String[] words = tokenize(normalize(keyword));
+		if (words.length == 0) {
+			return null;
+		}
+
+		int[] result = null;
+		for (int i = 0; i < words.length; i++) {
+			String word = words[i];
+			int[] pages;
+			if (isCjk(word.charAt(0))) {
+				pages = findNGrams(word);
+			} else if (i == 0 || isRtl(word)) {
+				// a right-to-left keyword may be in reverse order, so any of its words may come first
+				pages = findSubstring(word);
+			} else {
+				pages = findPrefix(word);
+			}
+			if (pages == null) {
+				return new int[0];
+			}
+			result = result == null ? pages : intersect(result, pages);
+			if (result.length == 0) {
+				break;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the pages containing a word of the page text which starts with the given word.
+	 */
+	private int[] findPrefix(String word) {
+		int idx = Arrays.binarySearch(mTerms, word);
+		if (idx < 0) {
+			idx = -idx - 1;
+		}
+		int[] pages = null;
+		for (int i = idx; i < mTerms.length && mTerms[i].startsWith(word); i++) {
+			pages = pages == null ? mPostings[i] : union(pages, mPostings[i]);
+		}
+		return pages;
+	}
+
+	/**
+	 * Returns the pages containing a word of the page text which contains the given word.
+	 */
+	private int[] findSubstring(String word) {
+		if (word.length() < 2) {
+			// a single character has no pair: every term is compared
+			int[] pages = null;
+			for (int i = 0; i < mTerms.length; i++) {
+				if (mTerms[i].indexOf(word.charAt(0)) >= 0) {
+					pages = pages == null ? mPostings[i] : union(pages, mPostings[i]);
+				}
+			}
+			return pages;
+		}
+
+		int[] terms = null;
+		for (int i = 0; i + 1 < word.length(); i++) {
+			int[] pairTerms = mPairTerms.get(pairAt(word, i));
+			if (pairTerms == null) {
+				return null;
+			}
+			terms = terms == null ? pairTerms : intersect(terms, pairTerms);
+			if (terms.length == 0) {
+				return null;
+			}
+		}
+
+		int[] pages = null;
+		for (int termIdx : terms) {
+			if (mTerms[termIdx].contains(word)) {
+				pages = pages == null ? mPostings[termIdx] : union(pages, mPostings[termIdx]);
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * Returns the pages containing every n-gram of a CJK run.
+	 */
+	private int[] findNGrams(String run) {
+		if (run.length() == 1) {
+			return findTerm(run);
+		}
+		int[] pages = null;
+		for (int i = 0; i + 1 < run.length(); i++) {
+			int[] gram = findTerm(run.substring(i, i + 2));
+			if (gram == null) {
+				return null;
+			}
+			pages = pages == null ? gram : intersect(pages, gram);
+		}
+		return pages;
+	}
+
+	private int[] findTerm(String term) {
+		int idx = Arrays.binarySearch(mTerms, term);
+		return idx >= 0 ? mPostings[idx] : null;
+	}
+
+	/**
+	 * Returns whether a character belongs to a script written without spaces between words
+	 * (Chinese, Japanese and Korean).
+	 */
+	static boolean isCjk(char c) {
+		return (c >= 0x3040 && c <= 0x30ff)      // Hiragana, Katakana
+				|| (c >= 0x3400 && c <= 0x4dbf)  // CJK Unified Ideographs Extension A
+				|| (c >= 0x4e00 && c <= 0x9fff)  // CJK Unified Ideographs
+				|| (c >= 0xf900 && c <= 0xfaff)  // CJK Compatibility Ideographs
+				|| (c >= 0x1100 && c <= 0x11ff)  // Hangul Jamo
+				|| (c >= 0x3130 && c <= 0x318f)  // Hangul Compatibility Jamo
+				|| (c >= 0xac00 && c <= 0xd7af)  // Hangul Syllables
+				|| (c >= 0xff66 && c <= 0xff9f); // Halfwidth Katakana
+	}
+
+	private static boolean isRtl(String word) {
+		for (int i = 0; i < word.length(); i++) {
+			byte dir = Character.getDirectionality(word.charAt(i));
+			if (dir == Character.DIRECTIONALITY_RIGHT_TO_LEFT
+					|| dir == Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Folds the case, the accents and the width of a text, like the stored page texts.
+	 *
+	 * @param text The text to normalize.
+	 * @return The normalized text.
+	 * @see FoldedText
+	 */
+	static String normalize(String text) {
+		return FoldedText.fold(text);
+	}
+
+	/**
+	 * Splits a normalized text into its words (runs of letters and digits). A run of CJK characters
+	 * is a word of its own, even without space around it.
+	 *
+	 * @param text A normalized text.
+	 * @return The words, in order of appearance.
+	 */
+	static String[] tokenize(String text) {
+		ArrayList<String> words = new ArrayList<String>();
+		int start = -1;
+		boolean cjk = false;
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : 0;
+			boolean inWord = i < text.length() && Character.isLetterOrDigit(c);
+			if (start >= 0 && (!inWord || isCjk(c) != cjk)) {
+				words.add(text.substring(start, i));
+				start = -1;
+			}
+			if (inWord && start < 0) {
+				start = i;
+				cjk = isCjk(c);
+			}
+		}
+		return words.toArray(new String[words.size()]);
+	}
+
+	static int[] union(int[] a, int[] b) {
+		int[] out = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length || j < b.length) {
+			int v;
+			if (j >= b.length || (i < a.length && a[i] < b[j])) {
+				v = a[i++];
+			} else if (i >= a.length || b[j] < a[i]) {
+				v = b[j++];
+			} else {
+				v = a[i++];
+				j++;
+			}
+			out[n++] = v;
+		}
+		return trim(out, n);
+	}
+
+	static int[] intersect(int[] a, int[] b) {
+		int[] out = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (b[j] < a[i]) {
+				j++;
+			} else {
+				out[n++] = a[i++];
+				j++;
+			}
+		}
+		return trim(out, n);
+	}
+
+	private static int[] trim(int[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+		int[] out = new int[length];
+		System.arraycopy(array, 0, out, 0, length);
+		return out;
+	}
+
+	/**
+	 * Writes the index to a file.
+	 *
+	 * @param file The destination file. It is replaced atomically.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public void writeTo(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(mPageCount);
+			out.writeInt(mTerms.length);
+			for (int i = 0; i < mTerms.length; i++) {
+				out.writeUTF(mTerms[i]);
+				int[] pages = mPostings[i];
+				writeVarInt(out, pages.length);
+				int last = 0;
+				for (int page : pages) {
+					writeVarInt(out, page - last);
+					last = page;
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("cannot replace " + file);
+		}
+	}
+
+	/**
+	 * Reads an index written by {@link #writeTo(File)}.
+	 *
+	 * @param file      The index file.
+	 * @param pageCount The page count of the opened document, used to reject a stale index.
+	 * @return The index, or null if the file is missing or does not match.
+	 */
+	public static SearchIndex readFrom(File file, int pageCount) {
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION
+					|| in.readInt() != pageCount) {
+				return null;
+			}
+			int termCount = in.readInt();
+			String[] terms = new String[termCount];
+			int[][] postings = new int[termCount][];
+			for (int i = 0; i < termCount; i++) {
+				terms[i] = in.readUTF();
+				int[] pages = new int[readVarInt(in)];
+				int last = 0;
+				for (int j = 0; j < pages.length; j++) {
+					last += readVarInt(in);
+					pages[j] = last;
+				}
+				postings[i] = pages;
+			}
+			return new SearchIndex(pageCount, terms, postings);
+		} catch (IOException e) {
+			file.delete();
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	/**
+	 * Accumulates the words of the pages, which must be added in increasing page order.
+	 */
+	static class Builder {
+		private final int mPageCount;
+		private final HashMap<String, int[]> mPages = new HashMap<String, int[]>();
+		private final HashMap<String, Integer> mSizes = new HashMap<String, Integer>();
+
+		Builder(int pageCount) {
+			mPageCount = pageCount;
+		}
+
+		/**
+		 * Adds the text of a page.
+		 *
+		 * @param pageIdx The (zero-based) page index.
+		 * @param text    The folded page text, as stored by the {@link PageTextStore}.
+		 */
+		void addPage(int pageIdx, FoldedText text) {
+			if (text == null) {
+				return;
+			}
+			for (String word : tokenize(text.getText())) {
+				if (isCjk(word.charAt(0))) {
+					for (int i = 0; i < word.length(); i++) {
+						addTerm(word.substring(i, i + 1), pageIdx);
+						if (i + 1 < word.length()) {
+							addTerm(word.substring(i, i + 2), pageIdx);
+						}
+					}
+				} else {
+					addTerm(word, pageIdx);
+					if (isRtl(word)) {
+						addTerm(new StringBuilder(word).reverse().toString(), pageIdx);
+					}
+				}
+			}
+		}
+
+		private void addTerm(String word, int pageIdx) {
+			int[] pages = mPages.get(word);
+			Integer size = mSizes.get(word);
+			int n = size == null ? 0 : size;
+			if (n > 0 && pages[n - 1] == pageIdx) {
+				return;
+			}
+			if (pages == null) {
+				pages = new int[4];
+				mPages.put(word, pages);
+			} else if (n == pages.length) {
+				int[] grown = new int[n * 2];
+				System.arraycopy(pages, 0, grown, 0, n);
+				pages = grown;
+				mPages.put(word, pages);
+			}
+			pages[n] = pageIdx;
+			mSizes.put(word, n + 1);
+		}
+
+		SearchIndex build() {
+			String[] terms = mPages.keySet().toArray(new String[mPages.size()]);
+			Arrays.sort(terms);
+			int[][] postings = new int[terms.length][];
+			for (int i = 0; i < terms.length; i++) {
+				postings[i] = trim(mPages.get(terms[i]), mSizes.get(terms[i]));
+			}
+			return new SearchIndex(mPageCount, terms, postings);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * SearchResultCache.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.ArrayList;
+
+import android.graphics.RectF;
+import android.util.LruCache;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+
+/**
+ * Cache of the native search results of a document, keyed by keyword and page.
+ *
+ * The keyword is normalized the way {@link PDFDocument#getSearchPage} normalizes it, so the
+ * searches which the native code cannot tell apart share an entry. Pages without hit are cached
+ * too. Entries are evicted in LRU order when the total number of cached areas exceeds the limit.
+ *
+ * When the folded page texts of the document are available (see {@link #setTextSource}), a search
+ * without accents is answered from the folded text instead: the pages without occurrence are not
+ * searched natively at all, and on the other pages each original spelling of the occurrences is
+ * searched exactly, which costs the same as an exact search and gives the hit areas of the native
+ * search.
+ *
+ * The cache can be used from any thread. The returned areas are copies.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class SearchResultCache {
+
+	private static final RectF[] NO_HIT = new RectF[0];
+
+	private final LruCache<Key, RectF[]> mCache;
+	private volatile TextExtractionPipeline mTextSource;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxSize The maximum number of cached entries and areas.
+	 */
+	public SearchResultCache(int maxSize) {
+		mCache = new LruCache<Key, RectF[]>(maxSize) {
+
+			@Override
+			protected int sizeOf(Key key, RectF[] areas) {
+				return 1 + areas.length;
+			}
+		};
+	}
+
+	/**
+	 * Sets the folded page texts used for the searches without accents.
+	 *
+	 * @param pipeline The text extraction of the document, or null to always search natively
+	 *                 (e.g. once the content of the document has changed).
+	 */
+	public void setTextSource(TextExtractionPipeline pipeline) {
+		mTextSource = pipeline;
+	}
+
+	/**
+	 * Returns the hit areas of a page, searching it on a miss.
+	 *
+	 * @param doc      The document to search on a miss.
+	 * @param pageIdx  The (zero-based) page index.
+	 * @param keyword  The searched keyword.
+	 * @param unAccent true to also match the keyword without accents.
+	 * @return The hit areas, empty if the page does not contain the keyword.
+	 */
+	public RectF[] search(PDFDocument doc, int pageIdx, String keyword, boolean unAccent) {
+		Key key = new Key(normalize(keyword, unAccent), unAccent, pageIdx);
+		RectF[] areas = mCache.get(key);
+		if (areas == null) {
+			areas = unAccent ? searchFolded(doc, pageIdx, keyword) : null;
+			if (areas == null) {
+				areas = doc.getSearchPage(pageIdx, keyword, unAccent);
+			}
+			areas = areas == null || areas.length == 0 ? NO_HIT : copy(areas);
+			mCache.put(key, areas);
+		}
+		return copy(areas);
+	}
+
+	/**
+	 * Searches a page through its folded text.
+	 *
+	 * @return The hit areas, or null if the page must be searched natively.
+	 */
+	private RectF[] searchFolded(PDFDocument doc, int pageIdx, String keyword) {
+		TextExtractionPipeline source = mTextSource;
+		FoldedText text = source == null ? null : source.getFoldedText(pageIdx);
+		String folded = FoldedText.fold(keyword);
+		if (text == null || folded.trim().length() == 0) {
+			return null;
+		}
+
+		ArrayList<RectF> found = new ArrayList<RectF>();
+		for (String form : text.findOriginalForms(folded)) {
+			RectF[] areas = doc.getSearchPage(pageIdx, form, false);
+			if (areas == null) {
+				continue;
+			}
+			for (RectF area : areas) {
+				if (!found.contains(area)) {
+					found.add(area);
+				}
+			}
+		}
+		if (found.isEmpty()) {
+			// either no occurrence, or the native text differs from the extracted one (e.g. line
+			// breaks): let the native search decide
+			return text.getText().indexOf(folded) < 0 ? NO_HIT : null;
+		}
+		return found.toArray(new RectF[found.size()]);
+	}
+
+	/**
+	 * Drops every entry. Called when the content of the document changes.
+	 */
+	public void invalidate() {
+		mCache.evictAll();
+	}
+
+	private static String normalize(String keyword, boolean unAccent) {
+		if (unAccent) {
+			String removed = PDFDocument.removeAccentStr(keyword);
+			if (removed != null && removed.length() > 0) {
+				return removed;
+			}
+		}
+		return keyword;
+	}
+
+	private static RectF[] copy(RectF[] areas) {
+		if (areas.length == 0) {
+			return areas;
+		}
+		RectF[] out = new RectF[areas.length];
+		for (int i = 0; i < areas.length; i++) {
+			out[i] = new RectF(areas[i]);
+		}
+		return out;
+	}
+
+	private static final class Key {
+		private final String mKeyword;
+		private final boolean mUnAccent;
+		private final int mPageIdx;
+
+		Key(String keyword, boolean unAccent, int pageIdx) {
+			mKeyword = keyword;
+			mUnAccent = unAccent;
+			mPageIdx = pageIdx;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return mPageIdx == other.mPageIdx && mUnAccent == other.mUnAccent
+					&& mKeyword.equals(other.mKeyword);
+		}
+
+		@Override
+		public int hashCode() {
+			return (mKeyword.hashCode() * 31 + mPageIdx) * 2 + (mUnAccent ? 1 : 0);
+		}
+	}
+}
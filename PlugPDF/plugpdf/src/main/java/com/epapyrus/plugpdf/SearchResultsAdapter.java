@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * SearchResultsAdapter.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.HashMap;
+
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.epapyrus.plugpdf.core.SearchInfo;
+
+/**
+ * UI implementation of the search results panel: one row per hit, with its page number and
+ * the text around it.
+ *
+ * The hits are kept in primitive arrays rather than as objects, and the snippets are only
+ * extracted, in the background, for the rows being displayed, so that a document with tens of
+ * thousands of hits fits in memory. The extraction for a row is cancelled when the row is
+ * recycled for another hit before its snippet is ready.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class SearchResultsAdapter extends BaseAdapter {
+
+	private static final int SNIPPET_CONTEXT = 30;
+	private static final int SNIPPET_CACHE_SIZE = 128;
+
+	private final LayoutInflater mInflater;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+	private DocumentSearcher mSearcher;
+	private String mKeyword;
+	private int mGeneration;
+
+	// one entry per hit: page, rank of the hit on its page, and area (4 floats)
+	private int mCount;
+	private int[] mPages = new int[64];
+	private int[] mRanks = new int[64];
+	private float[] mAreas = new float[64 * 4];
+
+	private final LruCache<Integer, String> mSnippets = new LruCache<Integer, String>(SNIPPET_CACHE_SIZE);
+	private final HashMap<Integer, RenderExecutor.Task> mPendingSnippets =
+			new HashMap<Integer, RenderExecutor.Task>();
+
+	/**
+	 * The views of a row, and the extraction of its snippet.
+	 */
+	private static class RowHolder {
+		TextView mSnippetView;
+		TextView mPageView;
+		int mPosition = -1;
+		RenderExecutor.Task mSnippetTask;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param inflater {@link LayoutInflater}
+	 */
+	public SearchResultsAdapter(LayoutInflater inflater) {
+		mInflater = inflater;
+	}
+
+	/**
+	 * Removes all the hits and starts a new list.
+	 *
+	 * @param searcher The {@link DocumentSearcher} providing the page texts.
+	 * @param keyword  The searched keyword.
+	 */
+	public void reset(DocumentSearcher searcher, String keyword) {
+		mSearcher = searcher;
+		mKeyword = keyword;
+		mGeneration++;
+		mCount = 0;
+		mSnippets.evictAll();
+		for (RenderExecutor.Task task : mPendingSnippets.values()) {
+			task.cancel();
+		}
+		mPendingSnippets.clear();
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Appends the hits of a page.
+	 *
+	 * @param info The hit areas of the page.
+	 */
+	public void addHits(SearchInfo info) {
+		RectF[] areas = info.getAreaList();
+		ensureCapacity(mCount + areas.length);
+		for (int i = 0; i < areas.length; i++) {
+			mPages[mCount] = info.getPageIdx();
+			mRanks[mCount] = i;
+			mAreas[mCount * 4] = areas[i].left;
+			mAreas[mCount * 4 + 1] = areas[i].top;
+			mAreas[mCount * 4 + 2] = areas[i].right;
+			mAreas[mCount * 4 + 3] = areas[i].bottom;
+			mCount++;
+		}
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Returns all the hits of the page of a row, to be shown in the reader.
+	 *
+	 * @param position The row position.
+	 * @return The hit areas of the page.
+	 */
+	public SearchInfo getPageHits(int position) {
+		int pageIdx = mPages[position];
+		int first = position - mRanks[position];
+		int last = position;
+		while (last + 1 < mCount && mPages[last + 1] == pageIdx) {
+			last++;
+		}
+		RectF[] areas = new RectF[last - first + 1];
+		for (int i = first; i <= last; i++) {
+			areas[i - first] = new RectF(mAreas[i * 4], mAreas[i * 4 + 1],
+					mAreas[i * 4 + 2], mAreas[i * 4 + 3]);
+		}
+		return new SearchInfo(mKeyword, pageIdx, areas);
+	}
+
+	private void ensureCapacity(int count) {
+		if (count <= mPages.length) {
+			return;
+		}
+		int capacity = Math.max(count, mPages.length * 2);
+		int[] pages = new int[capacity];
+		int[] ranks = new int[capacity];
+		float[] areas = new float[capacity * 4];
+		System.arraycopy(mPages, 0, pages, 0, mCount);
+		System.arraycopy(mRanks, 0, ranks, 0, mCount);
+		System.arraycopy(mAreas, 0, areas, 0, mCount * 4);
+		mPages = pages;
+		mRanks = ranks;
+		mAreas = areas;
+	}
+
+	/* (non-Javadoc)
+	 * @see android.widget.Adapter#getCount()
+	 */
+	public int getCount() {
+		return mCount;
+	}
+
+	/* (non-Javadoc)
+	 * @see android.widget.Adapter#getItem(int)
+	 */
+	public Object getItem(int position) {
+		return mPages[position];
+	}
+
+	/* (non-Javadoc)
+	 * @see android.widget.Adapter#getItemId(int)
+	 */
+	public long getItemId(int position) {
+		return position;
+	}
+
+	/* (non-Javadoc)
+	 * @see android.widget.Adapter#getView(int, android.view.View, android.view.ViewGroup)
+	 */
+	public View getView(int position, View convertView, ViewGroup parent) {
+		View v;
+		RowHolder holder;
+		if (convertView == null) {
+			v = mInflater.inflate(R.layout.panel_search_result_item, parent, false);
+			holder = new RowHolder();
+			holder.mSnippetView = (TextView) v.findViewById(R.id.snippet);
+			holder.mPageView = (TextView) v.findViewById(R.id.page);
+			v.setTag(holder);
+		} else {
+			v = convertView;
+			holder = (RowHolder) v.getTag();
+		}
+
+		if (holder.mPosition != position) {
+			cancelSnippet(holder);
+			holder.mPosition = position;
+		}
+		String snippet = mSnippets.get(position);
+		if (snippet == null) {
+			holder.mSnippetTask = loadSnippet(position);
+		}
+		holder.mSnippetView.setText(snippet != null ? snippet : "");
+		holder.mPageView.setText(String.valueOf(mPages[position] + 1));
+		return v;
+	}
+
+	/**
+	 * Stops extracting the snippet of the hit a row showed, unless it is ready.
+	 */
+	private void cancelSnippet(RowHolder holder) {
+		RenderExecutor.Task task = holder.mSnippetTask;
+		holder.mSnippetTask = null;
+		if (task != null && mPendingSnippets.get(holder.mPosition) == task) {
+			mPendingSnippets.remove(holder.mPosition);
+			task.cancel();
+		}
+	}
+
+	/**
+	 * Extracts the snippet of a row in the background, then refreshes the list.
+	 *
+	 * @return The extraction, or null if the snippet cannot be extracted.
+	 */
+	private RenderExecutor.Task loadSnippet(final int position) {
+		if (mSearcher == null) {
+			return null;
+		}
+		RenderExecutor.Task pending = mPendingSnippets.get(position);
+		if (pending != null) {
+			return pending;
+		}
+		final DocumentSearcher searcher = mSearcher;
+		final String keyword = mKeyword;
+		final int pageIdx = mPages[position];
+		final int rank = mRanks[position];
+		final int generation = mGeneration;
+
+		RenderExecutor.Task task = new RenderExecutor.Task() {
+
+			@Override
+			protected void run() {
+				if (isCancelled()) {
+					return;
+				}
+				final String snippet = makeSnippet(searcher.getPageText(pageIdx), keyword, rank);
+				final RenderExecutor.Task task = this;
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if (generation != mGeneration || mPendingSnippets.get(position) != task) {
+							return;
+						}
+						mPendingSnippets.remove(position);
+						mSnippets.put(position, snippet);
+						notifyDataSetChanged();
+					}
+				});
+			}
+
+			@Override
+			protected void onCancelled() {
+				final RenderExecutor.Task task = this;
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						// a task cancelled by a recycled row is no longer pending
+						if (generation == mGeneration && mPendingSnippets.get(position) == task) {
+							mPendingSnippets.remove(position);
+						}
+					}
+				});
+			}
+		};
+		mPendingSnippets.put(position, task);
+		RenderExecutor.getInstance().submit(RenderExecutor.Priority.THUMBNAIL, task);
+		return task;
+	}
+
+	/**
+	 * Returns the text around the given occurrence of the keyword, on a single line.
+	 *
+	 * @param text    The page text.
+	 * @param keyword The searched keyword.
+	 * @param rank    The (zero-based) rank of the occurrence on the page.
+	 */
+	static String makeSnippet(String text, String keyword, int rank) {
+		if (text == null || text.length() == 0) {
+			return "";
+		}
+		int found = -1;
+		int from = 0;
+		for (int i = 0; i <= rank; i++) {
+			int idx = indexOfIgnoreCase(text, keyword, from);
+			if (idx < 0) {
+				break;
+			}
+			found = idx;
+			from = idx + Math.max(1, keyword.length());
+		}
+		if (found < 0) {
+			found = 0;
+		}
+		return makeSnippet(text, found, keyword.length());
+	}
+
+	/**
+	 * Returns the text around a range of the page text, on a single line.
+	 *
+	 * @param text   The page text.
+	 * @param found  The start of the range.
+	 * @param length The length of the range.
+	 */
+	static String makeSnippet(String text, int found, int length) {
+		if (text == null || text.length() == 0) {
+			return "";
+		}
+		int start = Math.max(0, found - SNIPPET_CONTEXT);
+		int end = Math.min(text.length(), found + length + SNIPPET_CONTEXT);
+		StringBuilder sb = new StringBuilder(end - start + 2);
+		if (start > 0) {
+			sb.append('…');
+		}
+		boolean space = false;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c)) {
+				space = true;
+			} else {
+				if (space && sb.length() > 0) {
+					sb.append(' ');
+				}
+				space = false;
+				sb.append(c);
+			}
+		}
+		if (end < text.length()) {
+			sb.append('…');
+		}
+		return sb.toString();
+	}
+
+	private static int indexOfIgnoreCase(String text, String keyword, int from) {
+		int last = text.length() - keyword.length();
+		for (int i = from; i <= last; i++) {
+			if (text.regionMatches(true, i, keyword, 0, keyword.length())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -16,19 +16,40 @@
 
 package com.epapyrus.plugpdf;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.graphics.Bitmap;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.MotionEvent;
+import android.widget.ImageView;
 import android.widget.RelativeLayout;
 
 import com.epapyrus.plugpdf.core.CoordConverter;
+import com.epapyrus.plugpdf.core.LicenseInfo;
 import com.epapyrus.plugpdf.core.PDFDocument;
+import com.epapyrus.plugpdf.core.PlugPDF;
+import com.epapyrus.plugpdf.core.PlugPDFException;
 import com.epapyrus.plugpdf.core.PropertyManager;
 import com.epapyrus.plugpdf.core.annotation.AnnotEventListener;
 import com.epapyrus.plugpdf.core.annotation.AnnotToolEventListener;
+import com.epapyrus.plugpdf.core.annotation.BaseAnnot;
+import com.epapyrus.plugpdf.core.annotation.acroform.BaseField;
 import com.epapyrus.plugpdf.core.annotation.acroform.FieldEventListener;
 import com.epapyrus.plugpdf.core.viewer.BasePlugPDFDisplay.PageDisplayMode;
 import com.epapyrus.plugpdf.core.viewer.DocumentState;
@@ -47,12 +68,38 @@ import com.epapyrus.plugpdf.core.viewer.ReaderView;
  */
 public class SimpleDocumentReader implements ReaderListener {
 
+	private static final long READ_AHEAD_LIMIT = 32L * 1024 * 1024;
+	private static final int READ_AHEAD_BUFFER_SIZE = 256 * 1024;
+	private static final String RETRY_DIR_NAME = "plugpdf_retry";
+	private static final String FD_PATH_PREFIX = "/proc/self/fd/";
+
 	private ReaderView mReaderView;
+	private ReaderEventDispatcher mDispatcher;
 	private SimpleReaderControlView mControlView;
+	private DocumentSearcher mSearcher;
+	private TextExtractionPipeline mTextPipeline;
+	private TextExtractionListener mTextListener;
+	private AnnotationIndex mAnnotIndex;
 	private SimpleDocumentReaderListener mListener;
 	private Activity mAct;
 	private String	mFilePath = null;
+	private String mPassword = null;
+	private int mParallelSearchHandles = 0;
+	private boolean mQuerySyntax = false;
 	private byte[] mFileData = null;
+	private int mFileDataLength = 0;
+	private byte[] mSpillingData = null;
+	private File mRetryFile = null;
+	private ParcelFileDescriptor mStreamDescriptor = null;
+	private OpenTask mOpenTask = null;
+	private DownloadCache.Download mDownload = null;
+	private ReaderSession mRestoredSession = null;
+	private boolean mAdoptingPrepared = false;
+	private Bitmap mPagePreview = null;
+	private ImageView mPreviewView = null;
+	// the bitmaps rendered by the page views around the current page, see rememberPageBitmap()
+	private final SparseArray<Bitmap> mPageBitmaps = new SparseArray<Bitmap>();
+	private PageViewListener mPageViewListener;
 
 	/**
 	 * Constructor which initializes the Reader UI layout.
@@ -61,7 +108,10 @@ public class SimpleDocumentReader implements ReaderListener {
 	public SimpleDocumentReader(Activity act) {
 		mAct = act;
 		mReaderView = new ReaderView(mAct);
-		mReaderView.setReaderListener(this);
+		mDispatcher = new ReaderEventDispatcher();
+		mDispatcher.addListener(this);
+		mReaderView.setReaderListener(mDispatcher);
+		mReaderView.setPageViewListener(mPageViewTracker);
 
 		mControlView = (SimpleReaderControlView) SimpleReaderControlView
 				.inflate(mAct, R.layout.simple_reader_control, null);
@@ -77,13 +127,51 @@ public class SimpleDocumentReader implements ReaderListener {
 		mListener = listener;
 	}
 
+	/**
+	 * Registers an additional callback for the reader events. Scroll, page and zoom events
+	 * are delivered at most once per display frame.
+	 *
+	 * @param listener An implementation of ReaderListener.
+	 */
+	public void addReaderListener(ReaderListener listener) {
+		mDispatcher.addListener(listener);
+	}
+
+	/**
+	 * Unregisters a callback added with {@link #addReaderListener(ReaderListener)}.
+	 *
+	 * @param listener The listener to remove.
+	 */
+	public void removeReaderListener(ReaderListener listener) {
+		mDispatcher.removeListener(listener);
+	}
+
+	/**
+	 * Registers a callback which receives the progress of the background text extraction.
+	 * The text of a document opened from a file is extracted after it is open, and the
+	 * extraction resumes where it stopped when the same file is opened again.
+	 *
+	 * @param listener An implementation of TextExtractionListener.
+	 */
+	public void setTextExtractionListener(TextExtractionListener listener) {
+		if (mTextPipeline != null) {
+			if (mTextListener != null) {
+				mTextPipeline.removeListener(mTextListener);
+			}
+			if (listener != null) {
+				mTextPipeline.addListener(listener);
+			}
+		}
+		mTextListener = listener;
+	}
+
 	/**
 	 * Registers a callback to be invoked when the page load is complete.
 	 *
 	 * @param listener An implementation of PageViewListener.
 	 */
 	public void setPageViewListener(PageViewListener listener) {
-		mReaderView.setPageViewListener(listener);
+		mPageViewListener = listener;
 	}
 
 	/**
@@ -98,6 +186,21 @@ public class SimpleDocumentReader implements ReaderListener {
 	public void setAnnotToolEventListener(AnnotToolEventListener listener) {
 		mReaderView.setAnnotToolListener(listener);
 	}
+
+	/**
+	 * Searches the text of the note and file annotations of the open document. The annotations
+	 * are indexed in the background once the document is open.
+	 *
+	 * @param keyword  The keyword to be found.
+	 * @param listener Receives the annotations which contain the keyword.
+	 */
+	public void searchAnnotations(String keyword, AnnotationIndex.Listener listener) {
+		if (mAnnotIndex != null) {
+			mAnnotIndex.search(keyword, listener);
+		} else {
+			listener.onAnnotationSearchResult(keyword, new AnnotationIndex.Hit[0]);
+		}
+	}
 	
 	public void setFieldEventListener(FieldEventListener listener) {
 		mReaderView.setFieldEventListener(listener); 
@@ -116,18 +219,452 @@ public class SimpleDocumentReader implements ReaderListener {
 	/**
 	 * Opens a SimpleDocumentViewer object at the specified path.
 	 *
+	 * The document is taken from the {@link DocumentHandleCache}, so a file closed recently, by
+	 * this reader or by a parallel search, is not parsed again, and it is given back to the
+	 * cache by {@link #clear()} unless it was edited. The document is opened by the view itself,
+	 * and not cached, when the view restores the recent page of the file, see
+	 * {@link #usesCachedHandle(String)}.
+	 *
 	 * @param filePath The path and the name of the accessible PDF.
 	 * @param password The password allowing to unlock the document, if encrypted.
 	 */
 	public void openFile(String filePath, String password) {
 		mFilePath = filePath;
-		mReaderView.openFile(filePath, password);
+		mPassword = password;
+		if (!usesCachedHandle(filePath)) {
+			mReaderView.openFile(filePath, password);
+			return;
+		}
+		PDFDocument doc;
+		try {
+			doc = DocumentHandleCache.getInstance().acquire(filePath, password);
+		} catch (PlugPDFException.WrongPassword e) {
+			mDispatcher.onLoadFinish(OPEN.WRONG_PASSWD);
+			return;
+		} catch (Exception e) {
+			Log.e("PlugPDF", "[ERROR] cannot open " + filePath + ": " + e.toString());
+			mDispatcher.onLoadFinish(OPEN.FAIL);
+			return;
+		}
+		adoptDocument(doc);
+	}
+
+	/**
+	 * Returns whether the document of a path is taken from and given back to the
+	 * {@link DocumentHandleCache}. The view must not release it, so it is detached before it is
+	 * cleared, which a trial license does not allow, see {@link #canDetachDocument()}. The view
+	 * restores the recent page of a file only when it opens the file itself. A descriptor path
+	 * identifies no document.
+	 */
+	private boolean usesCachedHandle(String filePath) {
+		return canDetachDocument() && !RecentPageSetting.isEnabled() && !isTransientPath(filePath);
+	}
+
+	/**
+	 * Releases a document which was not adopted, giving it back to the cache if it was taken
+	 * from it.
+	 */
+	private static void releaseDocument(PDFDocument doc) {
+		DocumentHandleCache cache = DocumentHandleCache.getInstance();
+		if (cache.isLent(doc)) {
+			cache.release(doc);
+		} else {
+			doc.release();
+		}
+	}
+
+	/**
+	 * Opens a PDF document bundled in the assets of the application. The asset is copied to the
+	 * cache directory in the background, once, and opened by path, so the document is not held in
+	 * memory. See {@link AssetFileCache}. The edits are saved as a new file of the external
+	 * storage, not into the cached copy, see {@link #save()}.
+	 *
+	 * @param assetName The path of the PDF in the assets.
+	 * @param password The password allowing to unlock the document, if encrypted.
+	 */
+	public void openAsset(String assetName, String password) {
+		openAssetAsync(assetName, password, null);
+	}
+
+	/**
+	 * Opens a PDF file in phases which can be followed and cancelled: the file is first read ahead
+	 * into the system cache in the background, then it is parsed on a worker thread, then the
+	 * first page is rendered. See {@link OpenTask}.
+	 * An open started before is cancelled.
+	 *
+	 * A document prepared for the same file and password with {@link DocumentPreloader} is adopted
+	 * instead of being parsed again, and its first page is shown until the reader renders it.
+	 *
+	 * @param filePath The path and the name of the accessible PDF.
+	 * @param password The password allowing to unlock the document, if encrypted.
+	 * @param listener Receives the progress and the result, or null.
+	 * @return The open, which can be used to cancel it and to read its timings.
+	 */
+	public OpenTask openFileAsync(String filePath, String password, OpenTask.Listener listener) {
+		return startOpen(filePath, null, password, listener);
+	}
+
+	/**
+	 * Opens a PDF document bundled in the assets of the application like
+	 * {@link #openFileAsync(String, String, OpenTask.Listener)}. The I/O phase copies the asset
+	 * to the cache directory the first time, see {@link AssetFileCache}.
+	 *
+	 * @param assetName The path of the PDF in the assets.
+	 * @param password The password allowing to unlock the document, if encrypted.
+	 * @param listener Receives the progress and the result, or null.
+	 * @return The open, which can be used to cancel it and to read its timings.
+	 */
+	public OpenTask openAssetAsync(String assetName, String password, OpenTask.Listener listener) {
+		return startOpen(null, assetName, password, listener);
+	}
+
+	/**
+	 * Opens a PDF document from an http or https URL like
+	 * {@link #openFileAsync(String, String, OpenTask.Listener)}. The I/O phase downloads the
+	 * document to the disk cache, resuming an interrupted download, or revalidates the cached copy;
+	 * the document is then opened from the cached file. See {@link DownloadCache}.
+	 *
+	 * @param url The url of the PDF document.
+	 * @param password The password allowing to unlock the document, if encrypted.
+	 * @param listener Receives the progress and the result, or null.
+	 * @return The open, which can be used to cancel it and to read its timings.
+	 */
+	public OpenTask openUrlAsync(String url, final String password, OpenTask.Listener listener) {
+		final OpenTask task = beginOpen(listener);
+		mDownload = DownloadCache.getInstance(mAct).fetch(url, new DownloadCache.Listener() {
+
+			@Override
+			public void onDownloadProgress(String url, long read, long total) {
+				if (task == mOpenTask && total > 0) {
+					task.notifyProgress((int) (read * 100 / total));
+				}
+			}
+
+			@Override
+			public void onDownloadFinish(String url, File file) {
+				if (task == mOpenTask) {
+					mDownload = null;
+				}
+				parseOpenedFile(task, file != null ? file.getPath() : null, password);
+			}
+		});
+		return task;
+	}
+
+	/**
+	 * Cancels the open in progress, if any, and starts the I/O phase of a new one.
+	 */
+	private OpenTask beginOpen(OpenTask.Listener listener) {
+		if (mOpenTask != null) {
+			mOpenTask.cancel();
+		}
+		OpenTask task = new OpenTask(this, listener);
+		mOpenTask = task;
+		task.startPhase(OpenTask.Phase.IO);
+		return task;
+	}
+
+	private OpenTask startOpen(final String filePath, final String assetName, final String password,
+							   OpenTask.Listener listener) {
+		final OpenTask task = beginOpen(listener);
+		if (filePath != null && DocumentPreloader.getInstance().take(filePath, password,
+				new DocumentPreloader.Callback() {
+
+					@Override
+					public void onPrepared(DocumentPreloader.Prepared prepared) {
+						adoptPrepared(task, filePath, password, prepared);
+					}
+				})) {
+			return task;
+		}
+		readAheadAndParse(task, filePath, assetName, password);
+		return task;
+	}
+
+	private void readAheadAndParse(final OpenTask task, final String filePath, final String assetName,
+								   final String password) {
+		RenderExecutor.getInstance().submit(RenderExecutor.Priority.VISIBLE_PAGE, new RenderExecutor.Task() {
+
+			@Override
+			protected void run() {
+				File file = null;
+				try {
+					file = assetName != null ? AssetFileCache.getFile(mAct, assetName) : new File(filePath);
+					readAhead(file, task);
+				} catch (IOException e) {
+					Log.w("PlugPDF", "[WARNING] cannot open " + (assetName != null ? assetName : filePath)
+							+ ": " + e.getMessage());
+					file = null;
+				}
+				final String path = file != null ? file.getPath() : null;
+				mAct.runOnUiThread(new Runnable() {
+
+					@Override
+					public void run() {
+						parseOpenedFile(task, path, password);
+					}
+				});
+			}
+
+			@Override
+			protected void onCancelled() {
+				// dropped from a full queue: a file can still be opened without reading it ahead
+				mAct.runOnUiThread(new Runnable() {
+
+					@Override
+					public void run() {
+						parseOpenedFile(task, filePath, password);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Shows the document prepared by {@link DocumentPreloader} for an open, or opens the file as
+	 * usual if it could not be prepared.
+	 */
+	private void adoptPrepared(OpenTask task, String filePath, String password,
+							   DocumentPreloader.Prepared prepared) {
+		if (task != mOpenTask || task.isCancelled() || mAct.isFinishing()) {
+			if (prepared != null) {
+				prepared.release();
+			}
+			if (task == mOpenTask) {
+				finishOpen(task, OPEN.NONE);
+			}
+			return;
+		}
+		if (prepared == null) {
+			// e.g. a wrong password, which the usual open reports
+			readAheadAndParse(task, filePath, null, password);
+			return;
+		}
+		// the file is already parsed: the phase only records the hand-over
+		task.startPhase(OpenTask.Phase.PARSE);
+		mFilePath = filePath;
+		mPassword = password;
+		mPagePreview = prepared.mFirstPage;
+		adoptDocument(prepared.mDoc);
+	}
+
+	/**
+	 * Shows a document opened outside of the reader view. A document taken from the
+	 * {@link DocumentHandleCache} is given back by {@link #clear()}, if it can be detached from
+	 * the view; otherwise the view owns it.
+	 */
+	private void adoptDocument(PDFDocument doc) {
+		if (!canDetachDocument()) {
+			DocumentHandleCache.getInstance().disown(doc);
+		}
+		mFileData = null;
+		mAdoptingPrepared = true;
+		// reports OPEN.SUCCESS, where the page display is set up
+		mReaderView.restoreSavedState(doc);
+	}
+
+	/**
+	 * Reads the end of the file, where the parser starts, then its beginning, through a small
+	 * buffer. The data is not kept: this only loads the file into the system cache. Runs on a
+	 * worker thread.
+	 */
+	private void readAhead(File file, final OpenTask task) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			long total = Math.min(length, READ_AHEAD_LIMIT);
+			byte[] buffer = new byte[READ_AHEAD_BUFFER_SIZE];
+			if (length > total) {
+				raf.seek(length - READ_AHEAD_BUFFER_SIZE);
+				raf.readFully(buffer);
+				raf.seek(0);
+			}
+			long read = 0;
+			int lastPercent = 0;
+			while (read < total && !task.isCancelled()) {
+				int n = raf.read(buffer, 0, (int) Math.min(buffer.length, total - read));
+				if (n <= 0) {
+					break;
+				}
+				read += n;
+				final int percent = (int) (read * 100 / total);
+				if (percent >= lastPercent + 10) {
+					lastPercent = percent;
+					mAct.runOnUiThread(new Runnable() {
+
+						@Override
+						public void run() {
+							if (task == mOpenTask) {
+								task.notifyProgress(percent);
+							}
+						}
+					});
+				}
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Parses the file read ahead by an open on a worker thread, unless the open was cancelled or
+	 * replaced, then shows the document, see {@link #adoptParsed}.
+	 */
+	private void parseOpenedFile(final OpenTask task, final String path, final String password) {
+		if (task != mOpenTask) {
+			return;
+		}
+		if (task.isCancelled() || mAct.isFinishing()) {
+			finishOpen(task, OPEN.NONE);
+			return;
+		}
+		if (path == null) {
+			mDispatcher.onLoadFinish(OPEN.FAIL);
+			return;
+		}
+		task.startPhase(OpenTask.Phase.PARSE);
+		final boolean cached = usesCachedHandle(path);
+		// a step is never dropped from a full queue, so the open always finishes
+		RenderExecutor.getInstance().submit(RenderExecutor.Priority.VISIBLE_PAGE, new RenderExecutor.Step() {
+
+			@Override
+			protected void run() {
+				PDFDocument doc = null;
+				OPEN state = OPEN.NONE;
+				if (!task.isCancelled()) {
+					try {
+						doc = cached ? DocumentHandleCache.getInstance().acquire(path, password)
+								: new PDFDocument(path, password != null ? password : "");
+						state = OPEN.SUCCESS;
+					} catch (PlugPDFException.WrongPassword e) {
+						state = OPEN.WRONG_PASSWD;
+					} catch (Exception e) {
+						Log.e("PlugPDF", "[ERROR] cannot open " + path + ": " + e.toString());
+						state = OPEN.FAIL;
+					}
+				}
+				final PDFDocument parsed = doc;
+				final OPEN result = state;
+				mAct.runOnUiThread(new Runnable() {
+
+					@Override
+					public void run() {
+						adoptParsed(task, path, password, parsed, result);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Shows the document parsed by {@link #parseOpenedFile}, or reports why it could not be
+	 * parsed. The document is released if the open was cancelled or replaced meanwhile.
+	 */
+	private void adoptParsed(OpenTask task, String path, String password, PDFDocument doc, OPEN state) {
+		if (task != mOpenTask || task.isCancelled() || mAct.isFinishing()) {
+			if (doc != null) {
+				releaseDocument(doc);
+			}
+			if (task == mOpenTask) {
+				finishOpen(task, OPEN.NONE);
+			}
+			return;
+		}
+		mFilePath = path;
+		mPassword = password;
+		if (doc == null) {
+			// a wrong password is asked for, then the file is opened again from mFilePath
+			mDispatcher.onLoadFinish(state);
+			return;
+		}
+		adoptDocument(doc);
+	}
+
+	/**
+	 * Called by {@link OpenTask#cancel()}. The I/O phase stops by itself, or the download is
+	 * stopped; a parsed document is cleared.
+	 */
+	void cancelOpen(OpenTask task) {
+		if (task != mOpenTask) {
+			return;
+		}
+		if (mDownload != null) {
+			mDownload.cancel();
+			mDownload = null;
+		}
+		if (task.getPhase() == OpenTask.Phase.FIRST_PAGE) {
+			clear();
+		}
+	}
+
+	private void finishOpen(OpenTask task, OPEN state) {
+		if (task == mOpenTask) {
+			mOpenTask = null;
+		}
+		task.finish(state);
 	}
 
 	public void openStream(FileInputStream stream, int length, String password) {
 		mReaderView.openStream(stream, length, password);
 	}
 
+	/**
+	 * Opens a PDF document from a region of an open file, such as a file received from a content
+	 * provider or an uncompressed asset.
+	 *
+	 * When the region is the whole file, the engine opens the file descriptor of the stream
+	 * directly, by its /proc/self/fd path: the pages are read with the engine's own random access,
+	 * without copying the file through Java buffers, and files larger than 2 GB are supported.
+	 * Otherwise the region is read through {@link #openStream(FileInputStream, int, String)},
+	 * which is limited to 2 GB. Either way the document has no path: it is saved as a new file,
+	 * see {@link #save()}, and searched without index.
+	 *
+	 * @param stream The stream of the file. It is not closed; it must stay open until
+	 *               {@link #clear()}.
+	 * @param offset The offset of the document in the file.
+	 * @param length The length of the document.
+	 * @param password The password allowing to unlock the document, if encrypted.
+	 */
+	public void openStream(FileInputStream stream, long offset, long length, String password) {
+		closeStreamDescriptor();
+		try {
+			FileChannel channel = stream.getChannel();
+			if (offset == 0 && length == channel.size()) {
+				// a duplicate keeps the descriptor valid however the caller handles the stream
+				mStreamDescriptor = ParcelFileDescriptor.dup(stream.getFD());
+				// the descriptor path is not recorded: the document is saved and searched as a stream
+				mFilePath = null;
+				mPassword = password;
+				mReaderView.openFile(getStreamPath(), password);
+				return;
+			}
+			if (length <= Integer.MAX_VALUE) {
+				channel.position(offset);
+				openStream(stream, (int) length, password);
+				return;
+			}
+			Log.w("PlugPDF", "[WARNING] cannot open a region of more than 2 GB of a file");
+		} catch (IOException e) {
+			Log.w("PlugPDF", "[WARNING] cannot open stream: " + e.getMessage());
+		}
+		mDispatcher.onLoadFinish(OPEN.FAIL);
+	}
+
+	private String getStreamPath() {
+		return FD_PATH_PREFIX + mStreamDescriptor.getFd();
+	}
+
+	private void closeStreamDescriptor() {
+		if (mStreamDescriptor != null) {
+			try {
+				mStreamDescriptor.close();
+			} catch (IOException e) {
+				Log.w("PlugPDF", "[WARNING] cannot close stream: " + e.getMessage());
+			}
+			mStreamDescriptor = null;
+		}
+	}
+
 	/**
 	 * Opens a PDF document with the specified data.
 	 *
@@ -136,10 +673,112 @@ public class SimpleDocumentReader implements ReaderListener {
 	 * @param password The password allowing to unlock the document, if encrypted.
 	 */
 	public void openData(byte[] data, int len, String password) {
+		mFilePath = null;
+		mPassword = password;
+		// kept only until the result: an encrypted document is retried from a file, see spillFileData()
 		mFileData = data;
+		mFileDataLength = len;
 		mReaderView.openData(data, len, password);
 	}
 
+	/**
+	 * Writes the data of a document opened from memory which asks for a password to an
+	 * app-private file in the background, once, so that the password is retried by path and the
+	 * data is not held while the password dialog is shown. The data is retried from memory if the
+	 * password is entered before the file is written.
+	 */
+	private void spillFileData() {
+		if (mFileData == null || mSpillingData == mFileData) {
+			return;
+		}
+		final byte[] data = mFileData;
+		final int length = mFileDataLength;
+		mSpillingData = data;
+		RenderExecutor.getInstance().submit(RenderExecutor.Priority.VISIBLE_PAGE, new RenderExecutor.Task() {
+
+			@Override
+			protected void run() {
+				File file = null;
+				try {
+					file = writeRetryFile(data, length);
+				} catch (IOException e) {
+					Log.w("PlugPDF", "[WARNING] cannot write the document for the password retry: "
+							+ e.getMessage());
+				}
+				final File spilled = file;
+				mAct.runOnUiThread(new Runnable() {
+
+					@Override
+					public void run() {
+						if (mSpillingData == data) {
+							mSpillingData = null;
+						}
+						if (spilled == null) {
+							return;
+						}
+						if (mFileData != data) {
+							// opened or replaced meanwhile
+							spilled.delete();
+							return;
+						}
+						// the file only replaces the data: the document still has no path of its own
+						deleteRetryFile();
+						mRetryFile = spilled;
+						mFileData = null;
+					}
+				});
+			}
+
+			@Override
+			protected void onCancelled() {
+				mAct.runOnUiThread(new Runnable() {
+
+					@Override
+					public void run() {
+						if (mSpillingData == data) {
+							mSpillingData = null;
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Writes the data to a new file of the cache directory. Runs on a worker thread.
+	 */
+	private File writeRetryFile(byte[] data, int length) throws IOException {
+		File dir = new File(mAct.getCacheDir(), RETRY_DIR_NAME);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		File file = File.createTempFile("retry", ".pdf", dir);
+		boolean written = false;
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(data, 0, length);
+			} finally {
+				out.close();
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				file.delete();
+			}
+		}
+		return file;
+	}
+
+	private void deleteRetryFile() {
+		if (mRetryFile != null) {
+			if (!mRetryFile.delete()) {
+				Log.w("PlugPDF", "[WARNING] cannot delete " + mRetryFile);
+			}
+			mRetryFile = null;
+		}
+	}
+
 	/**
 	 * Opens a PDF document from a JetStream Server.
 	 *
@@ -168,13 +807,19 @@ public class SimpleDocumentReader implements ReaderListener {
 	}
 
 	/**
-	 * Opens a PDF document with the given URL.
+	 * Opens a PDF document with the given URL. A document from an http or https URL is downloaded
+	 * to the disk cache and opened from there, see {@link #openUrlAsync}.
 	 *
 	 * @param url The url data representing a web address as a String object.
 	 * @param password The password allowing to unlock the document, if encrypted.
 	 */
 	public void openUrl(String url, String password) {
-		mReaderView.openUrl(url, password);
+		String scheme = Uri.parse(url).getScheme();
+		if ("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) {
+			openUrlAsync(url, password, null);
+		} else {
+			mReaderView.openUrl(url, password);
+		}
 	}
 
 	/**
@@ -195,6 +840,102 @@ public class SimpleDocumentReader implements ReaderListener {
 		return mReaderView.getState();
 	}
 
+	/**
+	 * Keeps the open document for the reader of a recreated activity, see {@link ReaderSession}.
+	 * The background work of this reader is stopped, and the document is detached from its view,
+	 * which would release it when cleared or finalized; the document is neither saved nor
+	 * released. This reader must not be used afterwards.
+	 *
+	 * @return The session to pass to {@link #restoreSession(ReaderSession)}, or null if no
+	 * document is open or it cannot be detached, see {@link #canDetachDocument()}.
+	 */
+	public ReaderSession retainSession() {
+		PDFDocument doc = mReaderView.getDocument();
+		if (doc == null || doc.wasReleased() || !canDetachDocument()) {
+			return null;
+		}
+		if (mOpenTask != null) {
+			finishOpen(mOpenTask, OPEN.NONE);
+		}
+		closeSearcher();
+		closeAnnotIndex();
+		Bundle controlState = new Bundle();
+		mControlView.saveState(controlState);
+		int pageIdx = mReaderView.getPageIdx();
+		// copied: the page views recycle their bitmaps when they are cleared
+		Bitmap pageBitmap = mPageBitmaps.get(pageIdx);
+		pageBitmap = pageBitmap != null && !pageBitmap.isRecycled()
+				? pageBitmap.copy(pageBitmap.getConfig(), false) : null;
+		mPageBitmaps.clear();
+		ReaderSession session = new ReaderSession(doc, mFilePath, mPassword, mRetryFile,
+				mStreamDescriptor, pageIdx, mReaderView.getPageDisplayMode(),
+				controlState, mControlView.detachThumbnailCache(), pageBitmap);
+		// the descriptor and the retry file now belong to the session
+		mStreamDescriptor = null;
+		mRetryFile = null;
+
+		mDispatcher.cancel();
+		detachDocument();
+		return session;
+	}
+
+	/**
+	 * Returns whether the document can be detached from the view by {@link #detachDocument()}
+	 * without showing anything. The core shows the trial expiration for every load it reports
+	 * with a trial license.
+	 */
+	private static boolean canDetachDocument() {
+		LicenseInfo license = PlugPDF.getLicenseInfo();
+		if (license == null) {
+			return false;
+		}
+		LicenseInfo.ProductVersion version = license.getProductVersion();
+		return version != LicenseInfo.ProductVersion.VER_KR_TRIAL
+				&& version != LicenseInfo.ProductVersion.VER_US_TRIAL;
+	}
+
+	/**
+	 * Detaches the document from the view, so that the view does not release it in clear(),
+	 * which its finalizer also calls, and stops the page loads of the view. The document is
+	 * neither saved nor released. Check {@link #canDetachDocument()} first.
+	 */
+	private void detachDocument() {
+		// the core drops its document only when a null state is restored, which reports a load:
+		// nobody listens to it, and the update check is suspended so that it shows no dialog
+		mReaderView.setReaderListener(new ReaderEventDispatcher());
+		boolean updateCheck = PlugPDF.isUpdateCheckEnabled();
+		PlugPDF.setUpdateCheckEnabled(false);
+		try {
+			mReaderView.restoreSavedState(null);
+		} finally {
+			PlugPDF.setUpdateCheckEnabled(updateCheck);
+			mReaderView.setReaderListener(mDispatcher);
+		}
+		// stops the page loads of the view, without a document to release
+		mReaderView.clear();
+	}
+
+	/**
+	 * Shows the document retained by the reader of a previous activity, instead of opening it
+	 * again. {@link SimpleDocumentReaderListener#onLoadFinish} is called as for an open.
+	 *
+	 * @param session The session returned by {@link #retainSession()}.
+	 */
+	public void restoreSession(ReaderSession session) {
+		mFilePath = session.mFilePath;
+		mPassword = session.mPassword;
+		mFileData = null;
+		deleteRetryFile();
+		mRetryFile = session.mRetryFile;
+		closeStreamDescriptor();
+		mStreamDescriptor = session.mStreamDescriptor;
+		mRestoredSession = session;
+		mControlView.setThumbnailCache(session.mThumbnailCache);
+		mPagePreview = session.mPageBitmap;
+		// reports OPEN.SUCCESS, where the page display is set up
+		mReaderView.restoreSavedState(session.mDoc);
+	}
+
 	/**
 	 * Saves the bundle object of the controller state.
 	 *
@@ -251,18 +992,73 @@ public class SimpleDocumentReader implements ReaderListener {
 
 	/**
 	 * Finds the given string, displaying the hit on the page if there is a match.
+	 * Once the search index of the document is built, only the pages it selects are searched.
 	 *
 	 * @param keyword The string to be found.
 	 * @param direction The direction of the next page (1 : front , -1 : reverse)
 	 */
 	public void search(String keyword, int direction) {
-		mReaderView.search(keyword, direction);
+		if (mSearcher == null || !mSearcher.search(keyword, direction)) {
+			mReaderView.search(keyword, direction);
+		}
+	}
+
+	/**
+	 * Enables/disables searching while the keyword is typed in the control bar. Enabled by default.
+	 * Keystrokes are debounced, a new keystroke cancels the running search, and the pages are
+	 * searched from the current page outward.
+	 *
+	 * @param enable true to search as the keyword is typed; otherwise false.
+	 */
+	public void setIncrementalSearchEnabled(boolean enable) {
+		mControlView.setIncrementalSearch(enable);
+	}
+
+	/**
+	 * Enables/disables the query syntax in the search texts: <code>a OR b</code>, <code>a AND b</code>,
+	 * <code>a NEAR/n b</code> and <code>/regular expression/</code>. Disabled by default, so that every
+	 * text is searched as typed. With the syntax enabled, a text in double quotes is still searched as
+	 * a plain keyword.
+	 *
+	 * @param enable true to parse the search texts using the query syntax as queries.
+	 */
+	public void setQuerySyntaxEnabled(boolean enable) {
+		mQuerySyntax = enable;
+		if (mSearcher != null) {
+			mSearcher.setQuerySyntaxEnabled(enable);
+		}
+	}
+
+	/**
+	 * Sets the number of additional document handles used to search a document opened from a file.
+	 * The handles search the pages in parallel, and the page rendering does not wait for the search.
+	 * Each handle costs the memory of an opened document. Once the document is edited, the handles
+	 * are closed and the displayed document is searched, since the file does not have the edits.
+	 *
+	 * @param handleCount The number of handles, or 0 to search on the displayed document only.
+	 */
+	public void setParallelSearchHandleCount(int handleCount) {
+		mParallelSearchHandles = Math.max(0, handleCount);
+		if (mSearcher != null) {
+			mSearcher.setParallelSearch(createParallelSearch());
+		}
+	}
+
+	private ParallelDocumentSearch createParallelSearch() {
+		if (mParallelSearchHandles == 0) {
+			return null;
+		}
+		PDFDocument doc = mReaderView.getDocument();
+		return new ParallelDocumentSearch(doc.getFilePath(), mPassword, doc, mParallelSearchHandles);
 	}
 
 	/**
 	 * Stops the current search, deleting the hit from any page view.
 	 */
 	public void stopSearch() {
+		if (mSearcher != null) {
+			mSearcher.stop();
+		}
 		mReaderView.stopSearch();
 	}
 
@@ -346,19 +1142,87 @@ public class SimpleDocumentReader implements ReaderListener {
 
 	public void flattenFormFields(boolean includedButtonField){
 		mReaderView.flattenFromFields(includedButtonField);
+		invalidateSearchResults();
 	}
 
 	public void flattenAnnots() {
 		mReaderView.flattenAnnots();
+		invalidateSearchResults();
+		if (mAnnotIndex != null) {
+			mAnnotIndex.invalidateAll();
+		}
+	}
+
+	/**
+	 * Drops the cached search results. Must be called after the page content of the document
+	 * is modified other than through this class.
+	 */
+	public void invalidateSearchResults() {
+		if (mSearcher != null) {
+			mSearcher.invalidateResults();
+		}
 	}
 
 	/**
 	 * Saves the PDF document.
+	 *
+	 * A document opened from memory or from a stream is saved as a new file of the external
+	 * storage, also when it is read from its temporary copy after a password retry (see
+	 * {@link #openData}) or through the descriptor of the stream (see {@link #openStream(
+	 * FileInputStream, long, long, String)}): its edits are not saved into the copy, which is
+	 * deleted by {@link #clear()}, nor through the descriptor into the file of the caller.
+	 * Likewise a document bundled in the assets is not saved into its cached copy, which is
+	 * replaced when the application is updated, see {@link #openAsset}.
 	 */
 	public void save() {
+		PDFDocument doc = mReaderView.getDocument();
+		if (doc != null && savesAsNewFile(doc.getFilePath())) {
+			if (doc.wasEdited()) {
+				mReaderView.saveAsFile(makeExternalSavePath());
+			}
+			return;
+		}
 		mReaderView.save();
 	}
 
+	/**
+	 * Returns the path under which the thumbnails of a document are stored on disk, or null if
+	 * they are not stored: a descriptor, a retry file or a cached asset is not the document's own
+	 * file, and stored thumbnails would outlive it.
+	 */
+	private String getThumbnailStorePath(String filePath) {
+		return filePath == null || savesAsNewFile(filePath) ? null : filePath;
+	}
+
+	/**
+	 * Returns whether the edits of a document read from a path are saved as a new file.
+	 */
+	private boolean savesAsNewFile(String filePath) {
+		return isTransientPath(filePath) || AssetFileCache.contains(mAct, filePath);
+	}
+
+	/**
+	 * Returns whether a document path is a file which is not the document's own, whose edits
+	 * must be saved elsewhere and whose text is not indexed, as for a document without a path.
+	 */
+	private boolean isTransientPath(String filePath) {
+		if (filePath == null) {
+			return false;
+		}
+		// a descriptor number is reused by other files: it identifies no document
+		return filePath.startsWith(FD_PATH_PREFIX)
+				|| (mRetryFile != null && filePath.equals(mRetryFile.getPath()));
+	}
+
+	/**
+	 * Returns a new path of the external storage, where the engine saves the documents which
+	 * have no path.
+	 */
+	private static String makeExternalSavePath() {
+		return Environment.getExternalStorageDirectory() + File.separator
+				+ new SimpleDateFormat("yyyyMMddHHmmss", Locale.US).format(new Date()) + ".pdf";
+	}
+
 	/**
 	 * Saves the document as a PDF file into the specified path.
 	 *
@@ -379,38 +1243,221 @@ public class SimpleDocumentReader implements ReaderListener {
 	@Override
 	public void onLoadFinish(DocumentState.OPEN state) {
 		if (state == OPEN.SUCCESS) {
+			if (mOpenTask != null) {
+				mOpenTask.startPhase(OpenTask.Phase.FIRST_PAGE);
+			}
+			ReaderSession session = mRestoredSession;
+			mRestoredSession = null;
+			boolean adopted = mAdoptingPrepared;
+			mAdoptingPrepared = false;
+			if (session != null || adopted) {
+				// restoreSavedState() does not set up the page display as openFile() does, which
+				// keeps the mode of the view, HORIZONTAL before the first document
+				mReaderView.setPageDisplayMode(session != null && session.mDisplayMode != null
+						? session.mDisplayMode : mReaderView.getPageDisplayMode());
+			}
+			PDFDocument doc = mReaderView.getDocument();
+			mControlView.setDocument(doc, getThumbnailStorePath(doc.getFilePath()));
 			mControlView.init(mAct);
 
 			RelativeLayout layout = new RelativeLayout(mAct);
 			layout.addView(mReaderView);
+			if ((session != null || adopted) && mPagePreview != null) {
+				// covers the page until the reader renders it
+				mPreviewView = new ImageView(mAct);
+				mPreviewView.setScaleType(ImageView.ScaleType.FIT_CENTER);
+				mPreviewView.setImageBitmap(mPagePreview);
+				layout.addView(mPreviewView, new RelativeLayout.LayoutParams(
+						RelativeLayout.LayoutParams.MATCH_PARENT, RelativeLayout.LayoutParams.MATCH_PARENT));
+			}
+			mPagePreview = null;
 			layout.addView(mControlView);
 
 			mAct.setContentView(layout);
 
 			CoordConverter.initCoordConverter(mAct, mReaderView);
 
-			goToPage(0);
+			openSearcher();
+			openAnnotIndex();
+
+			if (session != null) {
+				restoreControlState(session.mControlState);
+				goToPage(session.mPageIdx);
+			} else {
+				goToPage(0);
+			}
 		} else if (state == OPEN.WRONG_PASSWD) {
+			if (null == mFilePath) {
+				spillFileData();
+			}
 
 			PasswordDialog dialog = new PasswordDialog(mAct) {
 
 				@Override
 				public void onInputtedPassword(String password) {
 					if (null != mFilePath) {
-						mReaderView.openFile(mFilePath, password);
+						openFile(mFilePath, password);
 					} else if (null != mFileData) {
-						mReaderView.openData(mFileData, mFileData.length, password);
+						// the password was entered before the data was written to a file
+						mPassword = password;
+						mReaderView.openData(mFileData, mFileDataLength, password);
+					} else if (null != mRetryFile) {
+						mPassword = password;
+						mReaderView.openFile(mRetryFile.getPath(), password);
+					} else if (null != mStreamDescriptor) {
+						mPassword = password;
+						mReaderView.openFile(getStreamPath(), password);
 					}
 				}
 			};
 			dialog.show();
 		}
 
+		if (state != OPEN.WRONG_PASSWD) {
+			mFileData = null;
+		}
+		if (state != OPEN.SUCCESS) {
+			mAdoptingPrepared = false;
+			mPagePreview = null;
+		}
+
+		if (state != OPEN.SUCCESS && mOpenTask != null) {
+			finishOpen(mOpenTask, state);
+		}
+
 		if (mListener != null) {
 			mListener.onLoadFinish(state);
 		}
 	}
 
+	/**
+	 * Starts extracting the text of the opened file and loading its search index. Documents
+	 * opened from memory or from a stream are searched without index.
+	 */
+	private void openSearcher() {
+		closeSearcher();
+		PDFDocument doc = mReaderView.getDocument();
+		String filePath = doc.getFilePath();
+		if (filePath != null && filePath.length() > 0 && !isTransientPath(filePath)) {
+			mTextPipeline = new TextExtractionPipeline(mAct, doc, filePath);
+			if (mTextListener != null) {
+				mTextPipeline.addListener(mTextListener);
+			}
+			mSearcher = new DocumentSearcher(mAct, mReaderView, mDispatcher);
+			mSearcher.setParallelSearch(createParallelSearch());
+			mSearcher.setQuerySyntaxEnabled(mQuerySyntax);
+			mSearcher.open(mTextPipeline);
+			mControlView.setSearcher(mSearcher);
+			mTextPipeline.start();
+		}
+	}
+
+	private void openAnnotIndex() {
+		closeAnnotIndex();
+		mAnnotIndex = new AnnotationIndex(mReaderView.getDocument());
+		mAnnotIndex.start();
+	}
+
+	private void closeAnnotIndex() {
+		if (mAnnotIndex != null) {
+			mAnnotIndex.close();
+			mAnnotIndex = null;
+		}
+	}
+
+	/**
+	 * Marks the page of an annotation as modified in the annotation index.
+	 */
+	private void invalidateAnnotPage(int pageIdx) {
+		if (mAnnotIndex != null) {
+			mAnnotIndex.invalidatePage(pageIdx);
+		}
+	}
+
+	/**
+	 * Ends the open in progress when its first page is rendered, tracks the annotation edits for
+	 * the annotation index, and forwards the events to the listener set with
+	 * {@link #setPageViewListener(PageViewListener)}.
+	 */
+	private final PageViewListener mPageViewTracker = new PageViewListener() {
+
+		@Override
+		public void onAnnotationList(int pageIdx, List<BaseAnnot> annots) {
+			if (mPageViewListener != null) {
+				mPageViewListener.onAnnotationList(pageIdx, annots);
+			}
+		}
+
+		@Override
+		public void onFieldList(int pageIdx, List<BaseField> fields) {
+			if (mPageViewListener != null) {
+				mPageViewListener.onFieldList(pageIdx, fields);
+			}
+		}
+
+		@Override
+		public void cachePageBitmap(int pageIdx, Bitmap bitmap) {
+			rememberPageBitmap(pageIdx, bitmap);
+			if (mPageViewListener != null) {
+				mPageViewListener.cachePageBitmap(pageIdx, bitmap);
+			}
+		}
+
+		@Override
+		public void onPageLoadFinish(int pageIdx) {
+			removePreview();
+			if (mOpenTask != null && mOpenTask.getPhase() == OpenTask.Phase.FIRST_PAGE) {
+				finishOpen(mOpenTask, OPEN.SUCCESS);
+			}
+			if (mPageViewListener != null) {
+				mPageViewListener.onPageLoadFinish(pageIdx);
+			}
+		}
+
+		@Override
+		public void onAnnotationEdited(int pageIdx, List<BaseAnnot> annots, int type) {
+			invalidateAnnotPage(pageIdx);
+			if (mPageViewListener != null) {
+				mPageViewListener.onAnnotationEdited(pageIdx, annots, type);
+			}
+		}
+	};
+
+	/**
+	 * Keeps the bitmap rendered for a page, dropping those of the pages which are not next to
+	 * the current page, so that {@link #retainSession()} can carry the current page over.
+	 */
+	private void rememberPageBitmap(int pageIdx, Bitmap bitmap) {
+		mPageBitmaps.put(pageIdx, bitmap);
+		int current = mReaderView.getPageIdx();
+		for (int i = mPageBitmaps.size() - 1; i >= 0; i--) {
+			if (Math.abs(mPageBitmaps.keyAt(i) - current) > 1) {
+				mPageBitmaps.removeAt(i);
+			}
+		}
+	}
+
+	private void removePreview() {
+		if (mPreviewView != null) {
+			if (mPreviewView.getParent() instanceof RelativeLayout) {
+				((RelativeLayout) mPreviewView.getParent()).removeView(mPreviewView);
+			}
+			mPreviewView = null;
+		}
+	}
+
+	private void closeSearcher() {
+		if (mSearcher != null) {
+			mSearcher.close();
+			mSearcher = null;
+			mControlView.setSearcher(null);
+		}
+		if (mTextPipeline != null) {
+			mTextPipeline.close();
+			mTextPipeline = null;
+		}
+	}
+
 	/**
 	 * Called when the search on the PDF document is finished.
 	 *
@@ -520,6 +1567,12 @@ public class SimpleDocumentReader implements ReaderListener {
 	 */
 	public String getPageText(int pageIdx)
 	{
+		if (mTextPipeline != null) {
+			String text = mTextPipeline.getPageText(pageIdx);
+			if (text != null) {
+				return text;
+			}
+		}
 		return mReaderView.getPageText(pageIdx);
 	}
 
@@ -527,9 +1580,32 @@ public class SimpleDocumentReader implements ReaderListener {
 	 * Clears the reader.
 	 */
 	public void clear() {
-		mReaderView.clear();
+		if (mDownload != null) {
+			mDownload.cancel();
+			mDownload = null;
+		}
+		if (mOpenTask != null) {
+			finishOpen(mOpenTask, OPEN.NONE);
+		}
+		mDispatcher.cancel();
+		closeSearcher();
+		closeAnnotIndex();
+		removePreview();
+		mPageBitmaps.clear();
+		PDFDocument doc = mReaderView.getDocument();
+		if (doc != null && DocumentHandleCache.getInstance().isLent(doc)) {
+			// given back to the cache, which releases it if it was edited, see openFile()
+			detachDocument();
+			DocumentHandleCache.getInstance().release(doc);
+		} else {
+			mReaderView.clear();
+		}
+		mControlView.clearThumbnails();
 		mFileData = null;
 		mFilePath = null;
+		mPassword = null;
+		closeStreamDescriptor();
+		deleteRetryFile();
 	}
 
 	// / @endcond
@@ -538,4 +1614,18 @@ public class SimpleDocumentReader implements ReaderListener {
 	public void onLongPress(MotionEvent e) {
 
 	}
+
+	/**
+	 * Reads the recent page setting of the core view, which only its subclasses can read.
+	 */
+	private static final class RecentPageSetting extends ReaderView {
+
+		private RecentPageSetting(Activity act) {
+			super(act);
+		}
+
+		static boolean isEnabled() {
+			return isEnableUseRecentPage();
+		}
+	}
 }
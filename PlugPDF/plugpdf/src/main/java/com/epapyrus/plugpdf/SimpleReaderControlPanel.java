@@ -39,12 +39,14 @@ import android.widget.PopupWindow;
 import android.widget.PopupWindow.OnDismissListener;
 import android.widget.SeekBar;
 import android.widget.SeekBar.OnSeekBarChangeListener;
+import android.widget.TextView;
 import android.widget.ToggleButton;
 
 import com.epapyrus.plugpdf.OutlineAdapter.OutlintEditListener;
 import com.epapyrus.plugpdf.core.BaseReaderControl;
 import com.epapyrus.plugpdf.core.OutlineItem;
 import com.epapyrus.plugpdf.core.PlugPDFUtility;
+import com.epapyrus.plugpdf.core.SearchInfo;
 import com.epapyrus.plugpdf.core.viewer.ReaderView;
 
 /**
@@ -64,6 +66,9 @@ public class SimpleReaderControlPanel {
 	private View mPageDisplayPanel;
 	private View mBrightnessPanel;
 	private View mOutlinePanel;
+	private View mSearchResultsPanel;
+	private SearchResultsAdapter mSearchResultsAdapter;
+	private DocumentSearcher mScanningSearcher;
 
 	private PopupWindow mPopupPanel;
 
@@ -75,7 +80,7 @@ public class SimpleReaderControlPanel {
 
 	// panel type
 	public enum PanelType {
-		DISPLAYMODE, BRIGHTNESS, OUTLINE
+		DISPLAYMODE, BRIGHTNESS, OUTLINE, SEARCH_RESULTS
 	}
 
 	private OutlineAdapter.OutlintEditListener outlintEditListener = new OutlintEditListener() {
@@ -111,6 +116,80 @@ public class SimpleReaderControlPanel {
 		createPageDisplayPanel();
 		createBrightnessPanel();
 		createOutlinePanel();
+		createSearchResultsPanel();
+	}
+
+	/**
+	 * Creates the search results panel.
+	 */
+	private void createSearchResultsPanel() {
+		mSearchResultsPanel = mLayoutInflater.inflate(R.layout.panel_search_results, mParent, false);
+		mSearchResultsAdapter = new SearchResultsAdapter(mLayoutInflater);
+
+		ListView resultList = (ListView) mSearchResultsPanel
+				.findViewById(R.id.panel_search_results_list);
+		resultList.setAdapter(mSearchResultsAdapter);
+		resultList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+
+			@Override
+			public void onItemClick(AdapterView<?> parent, View view,
+									int position, long id) {
+				DocumentSearcher searcher = mScanningSearcher;
+				SearchInfo info = mSearchResultsAdapter.getPageHits(position);
+				hide();
+				if (searcher != null) {
+					searcher.showHit(info);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts listing all the hits of the keyword typed in the search bar.
+	 */
+	private void startSearchResults() {
+		stopSearchResults();
+		final DocumentSearcher searcher = mParent.getSearcher();
+		String keyword = mParent.getSearchKeyword();
+		mSearchResultsAdapter.reset(searcher,
+				DocumentSearcher.toNativeKeyword(searcher != null ? searcher.toKeyword(keyword) : keyword));
+		updateSearchResultsCount(false);
+		if (searcher == null) {
+			updateSearchResultsCount(true);
+			return;
+		}
+
+		mScanningSearcher = searcher;
+		boolean started = searcher.startScan(keyword, new ParallelDocumentSearch.Listener() {
+
+			@Override
+			public boolean onHit(SearchInfo info) {
+				mSearchResultsAdapter.addHits(info);
+				updateSearchResultsCount(false);
+				return true;
+			}
+
+			@Override
+			public void onFinish() {
+				updateSearchResultsCount(true);
+			}
+		});
+		if (!started) {
+			updateSearchResultsCount(true);
+		}
+	}
+
+	private void stopSearchResults() {
+		if (mScanningSearcher != null) {
+			mScanningSearcher.stopScan();
+		}
+	}
+
+	private void updateSearchResultsCount(boolean finished) {
+		TextView countView = (TextView) mSearchResultsPanel
+				.findViewById(R.id.panel_search_results_count);
+		countView.setText(mContext.getString(finished ? R.string.text_search_results_count
+				: R.string.text_search_results_scanning, mSearchResultsAdapter.getCount()));
 	}
 
 	/**
@@ -295,7 +374,7 @@ public class SimpleReaderControlPanel {
 	/**
 	 * Shows the anchor according to the passed-in PanelType.
 	 *
-	 * @param panelType Panel type (DISPLAYMODE/BRIGHTNESS/OUTLINE)
+	 * @param panelType Panel type (DISPLAYMODE/BRIGHTNESS/OUTLINE/SEARCH_RESULTS)
 	 * @param anchor {@link View}
 	 */
 	public void show(PanelType panelType, View anchor) {
@@ -330,6 +409,12 @@ public class SimpleReaderControlPanel {
 				((ToggleButton) mOutlinePanel.findViewById(R.id.panel_outline_add)).setChecked(false);
 				((ToggleButton) mOutlinePanel.findViewById(R.id.panel_outline_remove)).setChecked(false);
 				break;
+			case SEARCH_RESULTS:
+				panel = mSearchResultsPanel;
+				offsetW = (int) PlugPDFUtility.convertDipToPx(mContext, 100);
+
+				startSearchResults();
+				break;
 			default:
 				break;
 		}
@@ -343,6 +428,7 @@ public class SimpleReaderControlPanel {
 		mPopupPanel.setOnDismissListener(new OnDismissListener() {
 			@Override
 			public void onDismiss() {
+				stopSearchResults();
 				if (mIsModifiedOutline) {
 					outlineEditMode = false;
 					mIsModifiedOutline = false;
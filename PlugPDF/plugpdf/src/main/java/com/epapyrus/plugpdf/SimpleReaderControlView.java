@@ -41,6 +41,7 @@ import android.widget.ViewFlipper;
 
 import com.epapyrus.plugpdf.SimpleReaderControlPanel.PanelType;
 import com.epapyrus.plugpdf.core.BaseReaderControl;
+import com.epapyrus.plugpdf.core.PDFDocument;
 import com.epapyrus.plugpdf.core.PlugPDF;
 import com.epapyrus.plugpdf.core.annotation.tool.BaseAnnotTool.AnnotToolType;
 import com.epapyrus.plugpdf.core.gesture.BaseGestureProcessor.GestureType;
@@ -74,6 +75,7 @@ public class SimpleReaderControlView extends RelativeLayout {
     private EditText mSearchText;
     private Button mSearchBack;
     private Button mSearchFwd;
+    private Button mSearchResultsButton;
     // edit
     private Button mEditCancelButton;
     private Button mEditNoteButton;
@@ -88,9 +90,38 @@ public class SimpleReaderControlView extends RelativeLayout {
     private TextView mTitle;
     private int mPageIdx;
     private Bitmap mBitmap = null;
+    private int mThumbnailIdx;
+    private PageThumbnailCache mThumbnailCache = new PageThumbnailCache(
+            (int) (Runtime.getRuntime().maxMemory() / 32));
+    private ThumbnailScheduler mThumbnailScheduler;
+    private ThumbnailSpriteStore mSpriteStore;
+    private PDFDocument mDocument;
+    private String mDocumentPath;
+    private DocumentSearcher mSearcher;
+    private boolean mIncrementalSearch = true;
+    private Bitmap mPreviewBitmap = null;
+    private final char[] mPageNumberChars = new char[24];
+    private int mShownPageNumber = -1;
+    private int mShownPageCount = -1;
     private boolean enableHiddenTopBar;
     private boolean enableHiddenBottomBar;
 
+    static final int THUMBNAIL_HEIGHT = 200;
+    private static final int SEARCH_DEBOUNCE_MS = 80;
+
+    private final Runnable mIncrementalSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            String keyword = mSearchText.getText().toString();
+            if (!mTopBarIsSearch || keyword.length() == 0) {
+                return;
+            }
+            if (mSearcher == null || !mSearcher.searchIncremental(keyword)) {
+                mController.search(keyword, 0);
+            }
+        }
+    };
+
     /**
      * Constructor.
      *
@@ -118,6 +149,20 @@ public class SimpleReaderControlView extends RelativeLayout {
     public void createUILayout(BaseReaderControl controller) {
 
         mController = controller;
+        mThumbnailScheduler = new ThumbnailScheduler(controller, new ThumbnailScheduler.Callback() {
+            @Override
+            public void onThumbnailReady(Object doc, int pageIdx, Bitmap bitmap) {
+                mThumbnailCache.put(doc, pageIdx, THUMBNAIL_HEIGHT, bitmap);
+                if (pageIdx == mThumbnailIdx) {
+                    showThumbnail(bitmap, false);
+                }
+            }
+
+            @Override
+            public void onThumbnailDropped(Bitmap bitmap) {
+                mThumbnailCache.recycle(bitmap);
+            }
+        });
 
         mTitle = (TextView) findViewById(R.id.rc_title);
         mTopBarSwitcher = (ViewFlipper) findViewById(R.id.flipper);
@@ -130,6 +175,7 @@ public class SimpleReaderControlView extends RelativeLayout {
         mSearchText = (EditText) findViewById(R.id.rc_search_text);
         mSearchBack = (Button) findViewById(R.id.rc_search_back);
         mSearchFwd = (Button) findViewById(R.id.rc_search_forward);
+        mSearchResultsButton = (Button) findViewById(R.id.rc_search_results);
         mEditCancelButton = (Button) findViewById(R.id.rc_edit_cancel);
         mEditNoteButton = (Button) findViewById(R.id.rc_edit_note);
         mEditInkButton = (Button) findViewById(R.id.rc_edit_ink);
@@ -157,6 +203,7 @@ public class SimpleReaderControlView extends RelativeLayout {
 
         mControlPanel = new SimpleReaderControlPanel(getContext(), this,
                 mController);
+        openThumbnailStore();
         showOutlineButton(true);
 
         setEnableHiddenTopBar(false);
@@ -177,8 +224,9 @@ public class SimpleReaderControlView extends RelativeLayout {
 
                     public void onProgressChanged(SeekBar seekBar,
                                                   int progress, boolean fromUser) {
-                        updatePageNumber(seekBar.getProgress() + 1,
-                                seekBar.getMax() + 1);
+                        if (fromUser) {
+                            previewPage(progress, seekBar.getMax() + 1);
+                        }
                     }
                 });
 
@@ -207,6 +255,7 @@ public class SimpleReaderControlView extends RelativeLayout {
 
         mSearchBack.setEnabled(false);
         mSearchFwd.setEnabled(false);
+        mSearchResultsButton.setEnabled(false);
 
         mSearchText.addTextChangedListener(new TextWatcher() {
 
@@ -214,8 +263,12 @@ public class SimpleReaderControlView extends RelativeLayout {
                 boolean haveText = s.toString().length() > 0;
                 mSearchBack.setEnabled(haveText);
                 mSearchFwd.setEnabled(haveText);
+                mSearchResultsButton.setEnabled(haveText);
 
-                mController.resetSearchInfo();
+                resetSearch();
+                if (mIncrementalSearch && haveText) {
+                    postDelayed(mIncrementalSearchRunnable, SEARCH_DEBOUNCE_MS);
+                }
             }
 
             public void beforeTextChanged(CharSequence s, int start, int count,
@@ -233,8 +286,7 @@ public class SimpleReaderControlView extends RelativeLayout {
                                                   KeyEvent event) {
                         if (actionId == EditorInfo.IME_ACTION_NEXT
                                 || actionId == EditorInfo.IME_ACTION_DONE) {
-                            mController.search(
-                                    mSearchText.getText().toString(), 1);
+                            search(mSearchText.getText().toString(), 1);
                         }
                         return false;
                     }
@@ -242,12 +294,19 @@ public class SimpleReaderControlView extends RelativeLayout {
 
         mSearchBack.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                mController.search(mSearchText.getText().toString(), -1);
+                search(mSearchText.getText().toString(), -1);
             }
         });
         mSearchFwd.setOnClickListener(new View.OnClickListener() {
             public void onClick(View v) {
-                mController.search(mSearchText.getText().toString(), 1);
+                search(mSearchText.getText().toString(), 1);
+            }
+        });
+        mSearchResultsButton.setOnClickListener(new View.OnClickListener() {
+            public void onClick(View v) {
+                removeCallbacks(mIncrementalSearchRunnable);
+                hideKeyboard();
+                mControlPanel.show(PanelType.SEARCH_RESULTS, v);
             }
         });
 
@@ -438,37 +497,220 @@ public class SimpleReaderControlView extends RelativeLayout {
      * @param pageCount Total number of pages in the PDF document.
      */
     public void updatePageNumber(int pageIdx, int pageCount) {
-        mPageNumberView.setText(String.format("%d/%d", pageIdx, pageCount));
-        mPageSlider.setMax(pageCount - 1);
-        mPageSlider.setProgress(pageIdx - 1);
+        updatePageIndicator(pageIdx, pageCount);
+        if (mTopBarIsSearch && mSearchText.length() > 0) {
+            search(mSearchText.getText().toString(), 0);
+        }
+
+        loadThumbnail(mPageIdx, true);
+    }
+
+    /**
+     * Updates the page number view and the slider without allocating. The page number view lays
+     * out its new text in the next layout pass.
+     *
+     * @param pageIdx   The (one-based) page number.
+     * @param pageCount Total number of pages in the PDF document.
+     */
+    void updatePageIndicator(int pageIdx, int pageCount) {
+        setPageNumberText(pageIdx, pageCount);
+        if (mPageSlider.getMax() != pageCount - 1) {
+            mPageSlider.setMax(pageCount - 1);
+        }
+        if (mPageSlider.getProgress() != pageIdx - 1) {
+            mPageSlider.setProgress(pageIdx - 1);
+        }
         mPageIdx = pageIdx - 1;
-        if (mTopBarIsSearch && !mSearchText.getText().toString().isEmpty()) {
-            mController.search(mSearchText.getText().toString(), 0);
-        }
-
-        android.os.AsyncTask<Void, Void, Void> entrie = new android.os.AsyncTask<Void, Void, Void>() {
-            protected Void doInBackground(Void... v) {
-                int pageHeight = 200;
-                PointF pageSize = mController.getPageSize(mPageIdx);
-                int pageWidth = pageHeight * (int) pageSize.x / (int) pageSize.y;
-                mBitmap = Bitmap.createBitmap(pageWidth, pageHeight, PlugPDF.bitmapConfig());
-                mController.drawPage(mBitmap, mPageIdx, pageWidth, pageHeight, 0, 0, pageWidth, pageHeight);
-                return null;
-            }
+    }
+
+    /**
+     * Shows the page number and thumbnail of the page under the slider thumb while the user drags it.
+     *
+     * @param pageIdx   The (zero-based) page index under the thumb.
+     * @param pageCount Total number of pages in the PDF document.
+     */
+    private void previewPage(int pageIdx, int pageCount) {
+        setPageNumberText(pageIdx + 1, pageCount);
+        loadThumbnail(pageIdx, false);
+    }
+
+    /**
+     * Shows "page/count" in the page number view. The text is written into a reused char buffer
+     * and the view is only updated when the numbers change.
+     *
+     * @param page  The (one-based) page number.
+     * @param count Total number of pages.
+     */
+    private void setPageNumberText(int page, int count) {
+        if (page == mShownPageNumber && count == mShownPageCount) {
+            return;
+        }
+        mShownPageNumber = page;
+        mShownPageCount = count;
+
+        int len = appendNumber(mPageNumberChars, 0, page);
+        mPageNumberChars[len++] = '/';
+        len = appendNumber(mPageNumberChars, len, count);
+        mPageNumberView.setText(mPageNumberChars, 0, len);
+    }
 
-            protected void onPreExecute() {
-                mPageThumbnail.setImageBitmap(mBitmap);
+    private static int appendNumber(char[] buf, int pos, int value) {
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        int end = pos;
+        int v = value;
+        do {
+            end++;
+            v /= 10;
+        } while (v > 0);
+        int i = end;
+        do {
+            buf[--i] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        return end;
+    }
+
+    /**
+     * Shows the thumbnail of the given page. A cached thumbnail is shown directly; otherwise the
+     * low-resolution thumbnail of the sprite store is shown while the full one is rendered.
+     * While the slider is dragged, the stored thumbnail is enough and nothing is rendered.
+     *
+     * @param pageIdx The (zero-based) page index.
+     * @param settled false while the user is dragging the slider.
+     */
+    private void loadThumbnail(int pageIdx, boolean settled) {
+        Object doc = mDocument;
+        mThumbnailIdx = pageIdx;
+
+        Bitmap cached = mThumbnailCache.get(doc, pageIdx, THUMBNAIL_HEIGHT);
+        if (cached != null) {
+            mThumbnailScheduler.cancel();
+            if (cached != mBitmap) {
+                showThumbnail(cached, false);
             }
+            return;
+        }
 
-            protected void onPostExecute(Void ret) {
-                if (mBitmap != null) {
-                    mPageThumbnail.setImageBitmap(mBitmap);
+        if (mSpriteStore != null && mSpriteStore.isReady(pageIdx)) {
+            int width = mSpriteStore.getThumbnailWidth(pageIdx, THUMBNAIL_HEIGHT);
+            Bitmap preview = mThumbnailCache.obtain(width, THUMBNAIL_HEIGHT,
+                    PlugPDF.bitmapConfig(), mBitmap);
+            if (mSpriteStore.drawThumbnail(pageIdx, preview)) {
+                showThumbnail(preview, true);
+                if (!settled) {
+                    mThumbnailScheduler.cancel();
+                    return;
                 }
+            } else {
+                mThumbnailCache.recycle(preview);
             }
-        };
+        }
 
-        entrie.execute();
+        PointF pageSize = mController.getPageSize(pageIdx);
+        int pageWidth = THUMBNAIL_HEIGHT * (int) pageSize.x / (int) pageSize.y;
+        Bitmap bitmap = mThumbnailCache.obtain(pageWidth, THUMBNAIL_HEIGHT,
+                PlugPDF.bitmapConfig(), mBitmap);
+        mThumbnailScheduler.request(doc, pageIdx, bitmap);
+    }
 
+    /**
+     * Displays a thumbnail bitmap.
+     *
+     * @param bitmap    The thumbnail.
+     * @param temporary true if the bitmap is not owned by the thumbnail cache and can be
+     *                  reused once it is replaced.
+     */
+    private void showThumbnail(Bitmap bitmap, boolean temporary) {
+        Bitmap previous = mPreviewBitmap;
+        mBitmap = bitmap;
+        mPreviewBitmap = temporary ? bitmap : null;
+        mPageThumbnail.setImageBitmap(bitmap);
+        if (previous != null && previous != bitmap) {
+            mThumbnailCache.recycle(previous);
+        }
+    }
+
+    /**
+     * Sets the document shown by the controller, before {@link #init(Activity)}. Its thumbnails
+     * are cached under it, and stored on disk under its file.
+     *
+     * @param doc      The open document.
+     * @param filePath The path of the file of the document, or null to not store its thumbnails.
+     */
+    void setDocument(PDFDocument doc, String filePath) {
+        mDocument = doc;
+        mDocumentPath = filePath;
+    }
+
+    /**
+     * Opens the on-disk thumbnail store of the current document and starts filling it.
+     */
+    private void openThumbnailStore() {
+        if (mSpriteStore != null) {
+            mSpriteStore.close();
+            mSpriteStore = null;
+        }
+        if (mDocument == null) {
+            return;
+        }
+        if (mDocumentPath != null && mDocumentPath.length() > 0) {
+            mSpriteStore = new ThumbnailSpriteStore(getContext(), mController, mDocumentPath,
+                    mDocument.getPageCount());
+            mSpriteStore.start();
+        }
+    }
+
+    /**
+     * Drops the cached page thumbnails. Called when the document is closed.
+     */
+    void clearThumbnails() {
+        mThumbnailScheduler.cancel();
+        if (mSpriteStore != null) {
+            mSpriteStore.close();
+            mSpriteStore = null;
+        }
+        mBitmap = null;
+        mPreviewBitmap = null;
+        mPageThumbnail.setImageBitmap(null);
+        mThumbnailCache.clear();
+        mDocument = null;
+        mDocumentPath = null;
+    }
+
+    /**
+     * Stops the thumbnail rendering and hands the cached page thumbnails over, e.g. to the
+     * control view of a recreated activity showing the same document.
+     *
+     * @return The cache of the page thumbnails, which this view no longer uses.
+     */
+    PageThumbnailCache detachThumbnailCache() {
+        mThumbnailScheduler.cancel();
+        if (mSpriteStore != null) {
+            mSpriteStore.close();
+            mSpriteStore = null;
+        }
+        mBitmap = null;
+        mPreviewBitmap = null;
+        mPageThumbnail.setImageBitmap(null);
+        PageThumbnailCache cache = mThumbnailCache;
+        mThumbnailCache = new PageThumbnailCache((int) (Runtime.getRuntime().maxMemory() / 32));
+        mDocument = null;
+        mDocumentPath = null;
+        return cache;
+    }
+
+    /**
+     * Uses the page thumbnails detached from another control view with
+     * {@link #detachThumbnailCache()}.
+     *
+     * @param cache The cache of the page thumbnails.
+     */
+    void setThumbnailCache(PageThumbnailCache cache) {
+        mThumbnailCache.clear();
+        mThumbnailCache = cache;
     }
 
     /**
@@ -501,6 +743,66 @@ public class SimpleReaderControlView extends RelativeLayout {
         mTopBarIsSearch = false;
         hideKeyboard();
         setSearchMode(false);
+        resetSearch();
+    }
+
+    /**
+     * Sets the indexed searcher of the current document, or null to search with the controller only.
+     *
+     * @param searcher {@link DocumentSearcher} of the open document.
+     */
+    void setSearcher(DocumentSearcher searcher) {
+        mSearcher = searcher;
+        mSearchResultsButton.setVisibility(searcher != null ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Returns the indexed searcher of the current document, or null.
+     */
+    DocumentSearcher getSearcher() {
+        return mSearcher;
+    }
+
+    /**
+     * Returns the keyword typed in the search bar.
+     */
+    String getSearchKeyword() {
+        return mSearchText.getText().toString();
+    }
+
+    /**
+     * Enables/disables searching while the keyword is typed.
+     *
+     * @param enable true to search after each pause in typing; otherwise the search
+     *               starts from the keyboard action or the search buttons only.
+     */
+    void setIncrementalSearch(boolean enable) {
+        mIncrementalSearch = enable;
+        if (!enable) {
+            removeCallbacks(mIncrementalSearchRunnable);
+        }
+    }
+
+    /**
+     * Searches the keyword through the index when it is available, otherwise through the controller.
+     *
+     * @param keyword   The string to be found.
+     * @param direction The direction of the next page (1 : front, -1 : reverse, 0 : current page).
+     */
+    private void search(String keyword, int direction) {
+        if (direction != 0) {
+            removeCallbacks(mIncrementalSearchRunnable);
+        }
+        if (mSearcher == null || !mSearcher.search(keyword, direction)) {
+            mController.search(keyword, direction);
+        }
+    }
+
+    private void resetSearch() {
+        removeCallbacks(mIncrementalSearchRunnable);
+        if (mSearcher != null) {
+            mSearcher.reset();
+        }
         mController.resetSearchInfo();
     }
 
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * TextExtractionListener.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+/**
+ * The listener to be implemented which receives the progress of the background text
+ * extraction of the document opened in a {@link SimpleDocumentReader}.
+ *
+ * @author ePapyrus
+ *
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+public interface TextExtractionListener {
+	/**
+	 * Notifies that more pages have been extracted.
+	 *
+	 * @param extractedPageCount The number of pages extracted so far, including the pages
+	 *                           extracted when the document was previously opened.
+	 * @param pageCount The total number of pages.
+	 */
+	void onTextExtractionProgress(int extractedPageCount, int pageCount);
+
+	/**
+	 * Notifies that the text of every page has been extracted.
+	 */
+	void onTextExtractionFinish();
+}
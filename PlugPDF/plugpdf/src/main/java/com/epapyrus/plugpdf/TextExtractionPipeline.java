@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * TextExtractionPipeline.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.epapyrus.plugpdf.core.PDFDocument;
+
+/**
+ * Extracts the text of every page of a document in the background after it is opened.
+ *
+ * The pages are extracted in small batches, each queued on the {@link RenderExecutor} as a prefetch
+ * task, so that the extraction yields to page and thumbnail rendering between batches and holds the
+ * document lock for one page at a time. The texts are kept in a {@link PageTextStore} in the cache
+ * directory of the document, keyed by its {@link DocumentFingerprint}, with a checkpoint after every
+ * batch; a reopened document resumes where the extraction stopped.
+ *
+ * Listeners are called on the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class TextExtractionPipeline {
+
+	private static final String DIR_NAME = "plugpdf_search";
+	private static final int PAGES_PER_BATCH = 8;
+
+	private final Context mContext;
+	private final PDFDocument mDoc;
+	private final File mFile;
+	private final int mPageCount;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ArrayList<TextExtractionListener> mListeners = new ArrayList<TextExtractionListener>();
+
+	private volatile File mDir;
+	private volatile PageTextStore mStore;
+	private volatile boolean mClosed;
+	private volatile boolean mFinished;
+	private volatile RenderExecutor.Task mTask;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param context  {@link Context} used to locate the cache directory.
+	 * @param doc      The opened document.
+	 * @param filePath The path of the opened PDF file.
+	 */
+	public TextExtractionPipeline(Context context, PDFDocument doc, String filePath) {
+		mContext = context.getApplicationContext();
+		mDoc = doc;
+		mFile = new File(filePath);
+		mPageCount = doc.getPageCount();
+	}
+
+	/**
+	 * Adds a listener. Must be called from the UI thread.
+	 *
+	 * @param listener An implementation of TextExtractionListener.
+	 */
+	public void addListener(TextExtractionListener listener) {
+		if (!mListeners.contains(listener)) {
+			mListeners.add(listener);
+		}
+	}
+
+	/**
+	 * Removes a listener. Must be called from the UI thread.
+	 *
+	 * @param listener The listener to remove.
+	 */
+	public void removeListener(TextExtractionListener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Restores the checkpoint of the document and starts extracting the remaining pages.
+	 */
+	public void start() {
+		if (mTask != null) {
+			return;
+		}
+		submit(new RenderExecutor.Step() {
+
+			@Override
+			protected void run() {
+				int from;
+				try {
+					File dir = getDocumentDirectory(mContext, mFile);
+					PageTextStore store = new PageTextStore(dir, mPageCount);
+					from = store.open();
+					mDir = dir;
+					mStore = store;
+					if (mClosed) {
+						store.close();
+						return;
+					}
+				} catch (IOException e) {
+					Log.w("PlugPDF", "[WARNING] text extraction unavailable: " + e.getMessage());
+					return;
+				}
+				extractNextBatch(from);
+			}
+		});
+	}
+
+	/**
+	 * Stops the extraction. The extracted texts stay on disk up to the last checkpoint.
+	 */
+	public void close() {
+		mClosed = true;
+		RenderExecutor.Task task = mTask;
+		if (task != null) {
+			task.cancel();
+		}
+		PageTextStore store = mStore;
+		if (store != null) {
+			store.close();
+		}
+	}
+
+	/**
+	 * Returns the cache directory of a file, where its page texts and its search index are kept,
+	 * creating it if needed. Reads the file, so must not be called from the UI thread.
+	 *
+	 * @param context {@link Context} used to locate the cache directory.
+	 * @param file    The PDF file.
+	 * @return The cache directory of the file.
+	 * @throws IOException if the file cannot be read or the directory cannot be created.
+	 */
+	static File getDocumentDirectory(Context context, File file) throws IOException {
+		File dir = new File(new File(context.getCacheDir(), DIR_NAME), DocumentFingerprint.compute(file));
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot create " + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * Returns whether the text of every page has been extracted.
+	 */
+	public boolean isFinished() {
+		return mFinished;
+	}
+
+	/**
+	 * Returns the cache directory of the document, or null until it has been located.
+	 */
+	public File getDirectory() {
+		return mDir;
+	}
+
+	/**
+	 * Returns the number of pages of the document.
+	 */
+	public int getPageCount() {
+		return mPageCount;
+	}
+
+	/**
+	 * Returns the extracted text of a page.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 * @return The page text, or null if the page is not extracted yet.
+	 */
+	public String getPageText(int pageIdx) {
+		PageTextStore store = mStore;
+		return store == null ? null : store.getPageText(pageIdx);
+	}
+
+	/**
+	 * Returns the extracted text of a page with its folding.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 * @return The folded page text, or null if the page is not extracted yet.
+	 */
+	public FoldedText getFoldedText(int pageIdx) {
+		PageTextStore store = mStore;
+		return store == null ? null : store.getFoldedText(pageIdx);
+	}
+
+	/**
+	 * Extracts one batch of pages, checkpoints, and queues the next batch. Runs on a worker thread.
+	 */
+	private void extractNextBatch(int from) {
+		PageTextStore store = mStore;
+		int end = Math.min(mPageCount, from + PAGES_PER_BATCH);
+		try {
+			for (int i = from; i < end; i++) {
+				if (mClosed) {
+					return;
+				}
+				store.append(i, mDoc.getPageText(i));
+			}
+			if (end > from) {
+				store.checkpoint();
+			}
+		} catch (IOException e) {
+			if (!mClosed) {
+				Log.w("PlugPDF", "[WARNING] text extraction stopped: " + e.getMessage());
+			}
+			return;
+		}
+
+		postProgress(end);
+		if (end < mPageCount) {
+			final int next = end;
+			submit(new RenderExecutor.Step() {
+
+				@Override
+				protected void run() {
+					extractNextBatch(next);
+				}
+			});
+		}
+	}
+
+	private void postProgress(final int extractedPageCount) {
+		mHandler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				if (mClosed) {
+					return;
+				}
+				boolean finished = extractedPageCount >= mPageCount;
+				mFinished = finished;
+				for (int i = 0; i < mListeners.size(); i++) {
+					mListeners.get(i).onTextExtractionProgress(extractedPageCount, mPageCount);
+				}
+				if (finished) {
+					for (int i = 0; i < mListeners.size(); i++) {
+						mListeners.get(i).onTextExtractionFinish();
+					}
+				}
+			}
+		});
+	}
+
+	private void submit(RenderExecutor.Step task) {
+		if (!mClosed) {
+			mTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.PREFETCH, task);
+		}
+	}
+}
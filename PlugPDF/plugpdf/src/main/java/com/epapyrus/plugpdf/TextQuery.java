@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * TextQuery.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A search query matched against the extracted text of a page, for the searches a single keyword
+ * cannot express.
+ *
+ * Syntax:
+ * <ul>
+ * <li><code>/pattern/</code>: a regular expression, matched case-insensitively against the page text.</li>
+ * <li><code>a b OR c</code>: the pages containing both a and b, or containing c. The terms are
+ * matched like keywords, after case and accent folding; <code>AND</code> may be written explicitly
+ * and <code>"a phrase"</code> is a single term.</li>
+ * <li><code>a NEAR/n b</code>: a and b with at most n words between them.</li>
+ * </ul>
+ * Any other text is a plain keyword, see {@link #isQuery(String)}. So is a text in double quotes,
+ * e.g. <code>"rock AND roll"</code>, whose quotes are removed by {@link #unquote(String)}.
+ *
+ * The syntax is only recognized when the application enables it, see
+ * {@link SimpleDocumentReader#setQuerySyntaxEnabled(boolean)}; otherwise every text is a keyword.
+ *
+ * A match is reported as the original spellings of the matched texts, which are then located on
+ * the page by an exact native search.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class TextQuery {
+
+	private static final int MAX_FORMS = 32;
+
+	private final String mQuery;
+	private final Pattern mPattern;
+	private final ArrayList<ArrayList<Clause>> mGroups = new ArrayList<ArrayList<Clause>>();
+
+	/**
+	 * A term, or two terms near each other.
+	 */
+	private static class Clause {
+		final String mTerm;
+		final String mNearTerm;
+		final int mDistance;
+
+		Clause(String term, String nearTerm, int distance) {
+			mTerm = term;
+			mNearTerm = nearTerm;
+			mDistance = distance;
+		}
+	}
+
+	private TextQuery(String query, Pattern pattern) {
+		mQuery = query;
+		mPattern = pattern;
+	}
+
+	/**
+	 * Returns whether a search text uses the query syntax rather than being a plain keyword.
+	 *
+	 * @param text The search text.
+	 */
+	public static boolean isQuery(String text) {
+		if (text == null) {
+			return false;
+		}
+		String trimmed = text.trim();
+		if (isQuoted(trimmed)) {
+			return false;
+		}
+		if (trimmed.length() > 2 && trimmed.startsWith("/") && trimmed.endsWith("/")) {
+			return true;
+		}
+		String spaced = " " + trimmed + " ";
+		return spaced.contains(" OR ") || spaced.contains(" AND ") || trimmed.contains(" NEAR/");
+	}
+
+	/**
+	 * Returns the keyword of a text in double quotes, which is not parsed as a query.
+	 *
+	 * @param text The search text.
+	 * @return The text between the quotes, or the text itself if it is not in quotes.
+	 */
+	public static String unquote(String text) {
+		String trimmed = text.trim();
+		return isQuoted(trimmed) ? trimmed.substring(1, trimmed.length() - 1) : text;
+	}
+
+	private static boolean isQuoted(String trimmed) {
+		return trimmed.length() > 2 && trimmed.charAt(0) == '"' && trimmed.indexOf('"', 1) == trimmed.length() - 1;
+	}
+
+	/**
+	 * Parses a query.
+	 *
+	 * @param text A search text for which {@link #isQuery(String)} is true.
+	 * @return The query.
+	 * @throws PatternSyntaxException if the regular expression or the query is invalid.
+	 */
+	public static TextQuery parse(String text) {
+		String trimmed = text.trim();
+		if (trimmed.length() > 2 && trimmed.startsWith("/") && trimmed.endsWith("/")) {
+			Pattern pattern = Pattern.compile(trimmed.substring(1, trimmed.length() - 1),
+					Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+			return new TextQuery(text, pattern);
+		}
+
+		TextQuery query = new TextQuery(text, null);
+		ArrayList<String> tokens = splitTokens(trimmed);
+		ArrayList<Clause> group = new ArrayList<Clause>();
+		for (int i = 0; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			if (token.equals("OR")) {
+				query.addGroup(group, text);
+				group = new ArrayList<Clause>();
+			} else if (token.equals("AND")) {
+				continue;
+			} else if (token.startsWith("NEAR/")) {
+				if (group.isEmpty() || group.get(group.size() - 1).mNearTerm != null || i + 1 >= tokens.size()) {
+					throw new PatternSyntaxException("NEAR needs a term on each side", text, -1);
+				}
+				int distance;
+				try {
+					distance = Integer.parseInt(token.substring(5));
+				} catch (NumberFormatException e) {
+					throw new PatternSyntaxException("invalid NEAR distance", text, -1);
+				}
+				Clause left = group.remove(group.size() - 1);
+				group.add(new Clause(left.mTerm, FoldedText.fold(tokens.get(++i)), distance));
+			} else {
+				String term = FoldedText.fold(token).trim();
+				if (term.length() > 0) {
+					group.add(new Clause(term, null, 0));
+				}
+			}
+		}
+		query.addGroup(group, text);
+		return query;
+	}
+
+	private void addGroup(ArrayList<Clause> group, String text) {
+		if (group.isEmpty()) {
+			throw new PatternSyntaxException("empty term", text, -1);
+		}
+		mGroups.add(group);
+	}
+
+	/**
+	 * Splits a query into words and quoted phrases.
+	 */
+	private static ArrayList<String> splitTokens(String text) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		int i = 0;
+		while (i < text.length()) {
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '"') {
+				int end = text.indexOf('"', i + 1);
+				if (end < 0) {
+					end = text.length();
+				}
+				tokens.add(text.substring(i + 1, end));
+				i = end + 1;
+			} else {
+				int end = i;
+				while (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+					end++;
+				}
+				tokens.add(text.substring(i, end));
+				i = end;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Returns the query text.
+	 */
+	public String getText() {
+		return mQuery;
+	}
+
+	/**
+	 * Returns the pages which may match the query.
+	 *
+	 * @param index    The index of the document, or null.
+	 * @param allPages Every page of the document.
+	 * @return The sorted candidate pages.
+	 */
+	public int[] findCandidates(SearchIndex index, int[] allPages) {
+		if (index == null || mPattern != null) {
+			return allPages;
+		}
+		int[] result = new int[0];
+		for (ArrayList<Clause> group : mGroups) {
+			int[] pages = null;
+			for (Clause clause : group) {
+				pages = intersect(pages, index.findCandidates(clause.mTerm));
+				if (clause.mNearTerm != null) {
+					pages = intersect(pages, index.findCandidates(clause.mNearTerm));
+				}
+			}
+			result = SearchIndex.union(result, pages != null ? pages : allPages);
+		}
+		return result;
+	}
+
+	private static int[] intersect(int[] pages, int[] candidates) {
+		if (candidates == null) {
+			return pages;
+		}
+		return pages == null ? candidates : SearchIndex.intersect(pages, candidates);
+	}
+
+	/**
+	 * Matches the query against the text of a page.
+	 *
+	 * @param text The folded page text.
+	 * @return The distinct original spellings of the matched texts; empty if the page does not match.
+	 */
+	public LinkedHashSet<String> match(FoldedText text) {
+		LinkedHashSet<String> forms = new LinkedHashSet<String>();
+		if (mPattern != null) {
+			Matcher m = mPattern.matcher(text.getOriginal());
+			while (m.find() && forms.size() < MAX_FORMS) {
+				String form = m.group().trim();
+				if (form.length() > 0) {
+					forms.add(form);
+				}
+			}
+			return forms;
+		}
+
+		for (ArrayList<Clause> group : mGroups) {
+			LinkedHashSet<String> groupForms = new LinkedHashSet<String>();
+			boolean matched = true;
+			for (Clause clause : group) {
+				if (!matchClause(text, clause, groupForms)) {
+					matched = false;
+					break;
+				}
+			}
+			if (matched) {
+				forms.addAll(groupForms);
+			}
+		}
+		return forms;
+	}
+
+	/**
+	 * Matches one clause and adds the spellings of its occurrences.
+	 */
+	private static boolean matchClause(FoldedText text, Clause clause, LinkedHashSet<String> forms) {
+		if (clause.mNearTerm == null) {
+			LinkedHashSet<String> found = text.findOriginalForms(clause.mTerm);
+			forms.addAll(found);
+			return !found.isEmpty();
+		}
+
+		String folded = text.getText();
+		boolean matched = false;
+		int a = folded.indexOf(clause.mTerm);
+		while (a >= 0 && forms.size() < MAX_FORMS) {
+			int b = folded.indexOf(clause.mNearTerm);
+			while (b >= 0) {
+				if (isNear(folded, a, clause.mTerm.length(), b, clause.mNearTerm.length(), clause.mDistance)) {
+					forms.add(originalForm(text, a, clause.mTerm.length()));
+					forms.add(originalForm(text, b, clause.mNearTerm.length()));
+					matched = true;
+					break;
+				}
+				b = folded.indexOf(clause.mNearTerm, b + 1);
+			}
+			a = folded.indexOf(clause.mTerm, a + 1);
+		}
+		return matched;
+	}
+
+	/**
+	 * Returns whether two occurrences are separated by at most the given number of words. The
+	 * white space of a folded text is collapsed, so the words between are counted by its spaces.
+	 */
+	private static boolean isNear(String folded, int a, int aLength, int b, int bLength, int distance) {
+		int from, to;
+		if (a <= b) {
+			from = a + aLength;
+			to = b;
+		} else {
+			from = b + bLength;
+			to = a;
+		}
+		if (to < from) {
+			return false;
+		}
+		int spaces = 0;
+		for (int i = from; i < to; i++) {
+			if (folded.charAt(i) == ' ' && ++spaces > distance + 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String originalForm(FoldedText text, int start, int length) {
+		return text.getOriginal().substring(text.getOriginalStart(start),
+				text.getOriginalEnd(start + length));
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * ThumbnailScheduler.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.util.ArrayList;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.epapyrus.plugpdf.core.BaseReaderControl;
+
+/**
+ * Renders page thumbnails on the {@link RenderExecutor} with "latest request wins" semantics.
+ * Only one request is kept pending: a new request replaces the pending one, and a request that
+ * has been superseded is dropped before it reaches {@link BaseReaderControl#drawPage}. This
+ * keeps the page slider responsive while the user scrubs through a large document.
+ *
+ * {@link #request} and {@link #cancel} must be called from the UI thread.
+ * The {@link Callback} methods are also invoked on the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class ThumbnailScheduler {
+
+	/**
+	 * Receives the result of a thumbnail request.
+	 */
+	interface Callback {
+		/**
+		 * Called when a thumbnail has been rendered. The page may no longer be the latest
+		 * request, but the bitmap is still valid for caching.
+		 *
+		 * @param doc     The document the request was made for.
+		 * @param pageIdx The (zero-based) page index.
+		 * @param bitmap  The rendered thumbnail.
+		 */
+		void onThumbnailReady(Object doc, int pageIdx, Bitmap bitmap);
+
+		/**
+		 * Called when a request was superseded before or while it was rendered.
+		 * The bitmap passed to {@link ThumbnailScheduler#request} can be reused.
+		 *
+		 * @param bitmap The bitmap of the dropped request.
+		 */
+		void onThumbnailDropped(Bitmap bitmap);
+	}
+
+	private final BaseReaderControl mController;
+	private final Callback mCallback;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private final Object mLock = new Object();
+
+	private final RenderExecutor mExecutor = RenderExecutor.getInstance();
+	// requests are recycled so that steady-state scrubbing does not allocate. guarded by mLock.
+	private final ArrayList<Request> mFreeRequests = new ArrayList<Request>();
+	private Request mPending;
+	private boolean mDrainQueued;
+	private volatile int mGeneration;
+	private volatile int mCancelledGeneration;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param controller {@link BaseReaderControl} used to render the pages.
+	 * @param callback   {@link Callback} receiving the results.
+	 */
+	public ThumbnailScheduler(BaseReaderControl controller, Callback callback) {
+		mController = controller;
+		mCallback = callback;
+	}
+
+	/**
+	 * Requests the thumbnail of a page, superseding every earlier request.
+	 *
+	 * @param doc     The document of the page.
+	 * @param pageIdx The (zero-based) page index.
+	 * @param bitmap  The bitmap to draw into.
+	 */
+	public void request(Object doc, int pageIdx, Bitmap bitmap) {
+		Request dropped;
+		boolean submit;
+		synchronized (mLock) {
+			dropped = mPending;
+			Request request = mFreeRequests.isEmpty()
+					? new Request() : mFreeRequests.remove(mFreeRequests.size() - 1);
+			request.set(doc, pageIdx, bitmap, ++mGeneration);
+			mPending = request;
+			submit = !mDrainQueued;
+			mDrainQueued = true;
+		}
+		if (dropped != null) {
+			drop(dropped);
+		}
+		if (submit) {
+			mExecutor.resubmit(RenderExecutor.Priority.THUMBNAIL, mDrainTask);
+		}
+	}
+
+	/**
+	 * Drops the pending request and any result which has not been delivered yet.
+	 */
+	public void cancel() {
+		Request dropped;
+		synchronized (mLock) {
+			dropped = mPending;
+			mPending = null;
+			mCancelledGeneration = ++mGeneration;
+		}
+		if (dropped != null) {
+			drop(dropped);
+		}
+	}
+
+	private boolean isLatest(Request request) {
+		return request.mGeneration == mGeneration;
+	}
+
+	private void drop(Request request) {
+		mCallback.onThumbnailDropped(request.mBitmap);
+		recycle(request);
+	}
+
+	private void recycle(Request request) {
+		request.set(null, 0, null, 0);
+		synchronized (mLock) {
+			mFreeRequests.add(request);
+		}
+	}
+
+	/**
+	 * Takes the pending request and renders it. Only one drain task is queued at a time;
+	 * it always renders the latest request. It is a step, so that a full queue never drops it
+	 * while a request is pending.
+	 */
+	private final RenderExecutor.Task mDrainTask = new RenderExecutor.Step() {
+
+		@Override
+		protected void run() {
+			Request request;
+			synchronized (mLock) {
+				mDrainQueued = false;
+				request = mPending;
+				mPending = null;
+			}
+			if (request == null) {
+				return;
+			}
+
+			if (isLatest(request)) {
+				int width = request.mBitmap.getWidth();
+				int height = request.mBitmap.getHeight();
+				mController.drawPage(request.mBitmap, request.mPageIdx, width, height, 0, 0, width, height);
+				request.mRendered = true;
+			}
+			mMainHandler.post(request);
+		}
+
+		@Override
+		protected void onCancelled() {
+			synchronized (mLock) {
+				mDrainQueued = false;
+			}
+		}
+	};
+
+	/**
+	 * A thumbnail request. It is also the runnable delivering its result on the UI thread.
+	 */
+	private class Request implements Runnable {
+		Object mDoc;
+		int mPageIdx;
+		Bitmap mBitmap;
+		int mGeneration;
+		boolean mRendered;
+
+		void set(Object doc, int pageIdx, Bitmap bitmap, int generation) {
+			mDoc = doc;
+			mPageIdx = pageIdx;
+			mBitmap = bitmap;
+			mGeneration = generation;
+			mRendered = false;
+		}
+
+		@Override
+		public void run() {
+			if (mRendered && mGeneration > mCancelledGeneration) {
+				mCallback.onThumbnailReady(mDoc, mPageIdx, mBitmap);
+				recycle(this);
+			} else {
+				drop(this);
+			}
+		}
+	}
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright (C) 2013 ePapyrus, Inc. All rights reserved.
+ *
+ * This file is part of the PlugPDF Android project.
+ */
+
+/*
+ * ThumbnailSpriteStore.java
+ *
+ * Version:
+ *       id
+ *
+ * Revision:
+ *      logs
+ */
+
+package com.epapyrus.plugpdf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.epapyrus.plugpdf.core.BaseReaderControl;
+
+/**
+ * Disk-backed store of low-resolution page thumbnails.
+ *
+ * After the document is opened, every page is rendered once in the background into sprite sheets
+ * of {@link #COLUMNS} x {@link #ROWS} cells and writes them to the application cache directory,
+ * under the {@link DocumentFingerprint} of the file. The next time the same file is opened the
+ * sheets are read back instead of rendered, so the page slider preview is available immediately.
+ * The least recently opened documents are deleted when the stored sheets exceed
+ * {@link #MAX_STORE_BYTES}.
+ *
+ * Each sheet file starts with a small header holding the size of every cell, followed by the
+ * JPEG-compressed sheet image. The sheets are decoded in the background when they are first
+ * drawn; a page of a sheet which is not decoded yet is not drawn.
+ *
+ * {@link #isReady}, {@link #getThumbnailWidth} and {@link #drawThumbnail} are called from the UI thread.
+ *
+ * @author ePapyrus
+ * @see <a href="http://www.plugpdf.com">http://www.plugpdf.com</a>
+ */
+class ThumbnailSpriteStore {
+
+	static final int CELL_SIZE = 100;
+	static final int COLUMNS = 8;
+	static final int ROWS = 8;
+	static final int PAGES_PER_SHEET = COLUMNS * ROWS;
+
+	/** The maximum size of the stored sheets of all the documents, in bytes. */
+	static final long MAX_STORE_BYTES = 32L * 1024 * 1024;
+
+	private static final String DIR_NAME = "plugpdf_thumbnails";
+	private static final int FILE_VERSION = 1;
+	private static final int JPEG_QUALITY = 80;
+	// cells rendered by a prefetch step, so that a step holds a worker only briefly
+	private static final int CELLS_PER_STEP = 4;
+
+	private final BaseReaderControl mController;
+	private final File mFile;
+	private final File mCacheRoot;
+	private final int mPageCount;
+	private final int mSheetCount;
+
+	// page sizes inside their cells, and which sheets are available. guarded by "this".
+	private final short[] mWidths;
+	private final short[] mHeights;
+	private final boolean[] mSheetReady;
+
+	private final LruCache<Integer, Bitmap> mSheets = new LruCache<Integer, Bitmap>(2);
+	private final Canvas mCanvas = new Canvas();
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final Rect mSrcRect = new Rect();
+	private final Rect mDstRect = new Rect();
+
+	private volatile File mDir;
+	private volatile boolean mClosed;
+	private volatile RenderExecutor.Task mTask;
+	// the sheet being decoded, or -1. guarded by "this".
+	private int mDecodingSheet = -1;
+
+	// the sheet being rendered by the prefetch steps, which run one at a time
+	private Bitmap mSheetBitmap;
+	private Canvas mSheetCanvas;
+	private int mBuildSheet = -1;
+	private int mBuildCell;
+	private short[] mBuildWidths;
+	private short[] mBuildHeights;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param context    {@link Context} used to locate the cache directory.
+	 * @param controller {@link BaseReaderControl} used to render the pages.
+	 * @param filePath   The path of the opened PDF file.
+	 * @param pageCount  The number of pages of the document.
+	 */
+	public ThumbnailSpriteStore(Context context, BaseReaderControl controller, String filePath,
+								int pageCount) {
+		mController = controller;
+		mFile = new File(filePath);
+		mCacheRoot = new File(context.getCacheDir(), DIR_NAME);
+		mPageCount = pageCount;
+		mSheetCount = (pageCount + PAGES_PER_SHEET - 1) / PAGES_PER_SHEET;
+		mWidths = new short[pageCount];
+		mHeights = new short[pageCount];
+		mSheetReady = new boolean[mSheetCount];
+	}
+
+	/**
+	 * Starts loading the stored sheets and rendering the missing ones in the background.
+	 * The work is queued on the {@link RenderExecutor} as prefetch steps of a few cells each,
+	 * so it always yields to page and thumbnail rendering.
+	 */
+	public void start() {
+		if (mTask != null) {
+			return;
+		}
+		submit(new RenderExecutor.Step() {
+
+			@Override
+			protected void run() {
+				if (open()) {
+					buildNextCells(0);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops the background work and drops the decoded sheets. The files stay on disk.
+	 */
+	public void close() {
+		mClosed = true;
+		RenderExecutor.Task task = mTask;
+		if (task != null) {
+			task.cancel();
+		}
+		mSheets.evictAll();
+	}
+
+	/**
+	 * Returns whether the thumbnail of the given page can be drawn without rendering.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 */
+	public synchronized boolean isReady(int pageIdx) {
+		return pageIdx >= 0 && pageIdx < mPageCount && mSheetReady[pageIdx / PAGES_PER_SHEET];
+	}
+
+	/**
+	 * Returns the width of the thumbnail of a ready page scaled to the given height.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 * @param height  The thumbnail height.
+	 */
+	public synchronized int getThumbnailWidth(int pageIdx, int height) {
+		return Math.max(1, height * mWidths[pageIdx] / mHeights[pageIdx]);
+	}
+
+	/**
+	 * Draws the stored thumbnail of a ready page, scaled to the size of the target bitmap. The
+	 * sheet of the page is decoded in the background the first time: the thumbnail is not drawn
+	 * until it is decoded.
+	 *
+	 * @param pageIdx The (zero-based) page index.
+	 * @param target  The bitmap to draw into.
+	 * @return true if the thumbnail was drawn; otherwise false.
+	 */
+	public boolean drawThumbnail(int pageIdx, Bitmap target) {
+		int width;
+		int height;
+		synchronized (this) {
+			if (!isReady(pageIdx)) {
+				return false;
+			}
+			width = mWidths[pageIdx];
+			height = mHeights[pageIdx];
+		}
+
+		int sheetIdx = pageIdx / PAGES_PER_SHEET;
+		Bitmap sheet = mSheets.get(sheetIdx);
+		if (sheet == null) {
+			loadSheet(sheetIdx);
+			return false;
+		}
+
+		int cell = pageIdx % PAGES_PER_SHEET;
+		int left = (cell % COLUMNS) * CELL_SIZE;
+		int top = (cell / COLUMNS) * CELL_SIZE;
+		mSrcRect.set(left, top, left + width, top + height);
+		mDstRect.set(0, 0, target.getWidth(), target.getHeight());
+
+		mCanvas.setBitmap(target);
+		mCanvas.drawBitmap(sheet, mSrcRect, mDstRect, mPaint);
+		mCanvas.setBitmap(null);
+		return true;
+	}
+
+	/**
+	 * Decodes a stored sheet in the background, unless it is already being decoded.
+	 */
+	private void loadSheet(final int sheetIdx) {
+		synchronized (this) {
+			if (mDecodingSheet == sheetIdx) {
+				return;
+			}
+			mDecodingSheet = sheetIdx;
+		}
+		RenderExecutor.getInstance().submit(RenderExecutor.Priority.THUMBNAIL, new RenderExecutor.Task() {
+
+			@Override
+			protected void run() {
+				Bitmap sheet = mClosed ? null : decodeSheet(sheetFile(sheetIdx));
+				if (sheet != null) {
+					mSheets.put(sheetIdx, sheet);
+					if (mClosed) {
+						mSheets.evictAll();
+					}
+				}
+				endLoadSheet(sheetIdx);
+			}
+
+			@Override
+			protected void onCancelled() {
+				endLoadSheet(sheetIdx);
+			}
+		});
+	}
+
+	private synchronized void endLoadSheet(int sheetIdx) {
+		if (mDecodingSheet == sheetIdx) {
+			mDecodingSheet = -1;
+		}
+	}
+
+	private File sheetFile(int sheetIdx) {
+		return new File(mDir, "sheet_" + sheetIdx);
+	}
+
+	private void submit(RenderExecutor.Step task) {
+		mTask = RenderExecutor.getInstance().submit(RenderExecutor.Priority.PREFETCH, task);
+		if (mClosed) {
+			// close() may have cancelled the previous step; the chain stops here
+			task.cancel();
+		}
+	}
+
+	/**
+	 * Locates the cache directory of the document and reads the headers of the stored sheets.
+	 * Runs on a worker thread.
+	 */
+	private boolean open() {
+		try {
+			File dir = new File(mCacheRoot, DocumentFingerprint.compute(mFile));
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				return false;
+			}
+			// the least recently opened documents are trimmed first
+			dir.setLastModified(System.currentTimeMillis());
+			trim(mCacheRoot, dir);
+			mDir = dir;
+		} catch (IOException e) {
+			Log.w("PlugPDF", "[WARNING] thumbnail store unavailable: " + e.getMessage());
+			return false;
+		}
+
+		for (int i = 0; i < mSheetCount && !mClosed; i++) {
+			readHeader(i);
+		}
+		return true;
+	}
+
+	/**
+	 * Renders the next few cells of the sheet being built, or of the first missing sheet from the
+	 * given index, then queues the next step. A sheet is written once all its cells are rendered.
+	 * Runs on a worker thread.
+	 */
+	private void buildNextCells(int from) {
+		if (mBuildSheet < 0) {
+			int sheetIdx = from;
+			synchronized (this) {
+				while (sheetIdx < mSheetCount && mSheetReady[sheetIdx]) {
+					sheetIdx++;
+				}
+			}
+			if (sheetIdx >= mSheetCount || mClosed) {
+				recycleSheetBitmap();
+				return;
+			}
+			beginSheet(sheetIdx);
+		}
+
+		int first = mBuildSheet * PAGES_PER_SHEET;
+		int count = mBuildWidths.length;
+		int end = Math.min(count, mBuildCell + CELLS_PER_STEP);
+		for (; mBuildCell < end; mBuildCell++) {
+			if (mClosed) {
+				recycleSheetBitmap();
+				return;
+			}
+			renderCell(first + mBuildCell, mBuildCell);
+		}
+
+		final int next = mBuildCell == count ? mBuildSheet + 1 : mBuildSheet;
+		if (mBuildCell == count) {
+			try {
+				writeSheet(mBuildSheet);
+			} catch (IOException e) {
+				Log.w("PlugPDF", "[WARNING] cannot write thumbnail sheet: " + e.getMessage());
+			}
+			mBuildSheet = -1;
+		}
+
+		submit(new RenderExecutor.Step() {
+
+			@Override
+			protected void run() {
+				buildNextCells(next);
+			}
+
+			@Override
+			protected void onCancelled() {
+				// the chain stops: no step will draw into the sheet bitmap again
+				recycleSheetBitmap();
+			}
+		});
+	}
+
+	private void beginSheet(int sheetIdx) {
+		if (mSheetBitmap == null) {
+			mSheetBitmap = Bitmap.createBitmap(COLUMNS * CELL_SIZE, ROWS * CELL_SIZE,
+					Bitmap.Config.RGB_565);
+			mSheetCanvas = new Canvas(mSheetBitmap);
+		}
+		mSheetBitmap.eraseColor(Color.WHITE);
+		int count = Math.min(PAGES_PER_SHEET, mPageCount - sheetIdx * PAGES_PER_SHEET);
+		mBuildSheet = sheetIdx;
+		mBuildCell = 0;
+		mBuildWidths = new short[count];
+		mBuildHeights = new short[count];
+	}
+
+	private void recycleSheetBitmap() {
+		if (mSheetBitmap != null) {
+			mSheetBitmap.recycle();
+			mSheetBitmap = null;
+			mSheetCanvas = null;
+		}
+		mBuildSheet = -1;
+	}
+
+	private void readHeader(int sheetIdx) {
+		File file = sheetFile(sheetIdx);
+		if (!file.isFile()) {
+			return;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024));
+			if (in.readInt() != FILE_VERSION) {
+				return;
+			}
+			int first = sheetIdx * PAGES_PER_SHEET;
+			int count = in.readInt();
+			if (count != Math.min(PAGES_PER_SHEET, mPageCount - first)) {
+				return;
+			}
+			synchronized (this) {
+				for (int i = 0; i < count; i++) {
+					mWidths[first + i] = in.readShort();
+					mHeights[first + i] = in.readShort();
+				}
+				mSheetReady[sheetIdx] = true;
+			}
+		} catch (IOException e) {
+			file.delete();
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private void renderCell(int pageIdx, int cell) {
+		PointF size = mController.getPageSize(pageIdx);
+		int width = CELL_SIZE;
+		int height = CELL_SIZE;
+		if (size.x > size.y) {
+			height = Math.max(1, (int) (CELL_SIZE * size.y / size.x));
+		} else {
+			width = Math.max(1, (int) (CELL_SIZE * size.x / size.y));
+		}
+
+		Bitmap page = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		mController.drawPage(page, pageIdx, width, height, 0, 0, width, height);
+		mSheetCanvas.drawBitmap(page, (cell % COLUMNS) * CELL_SIZE, (cell / COLUMNS) * CELL_SIZE, null);
+		page.recycle();
+
+		mBuildWidths[cell] = (short) width;
+		mBuildHeights[cell] = (short) height;
+	}
+
+	private void writeSheet(int sheetIdx) throws IOException {
+		int first = sheetIdx * PAGES_PER_SHEET;
+		int count = mBuildWidths.length;
+		File file = sheetFile(sheetIdx);
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(FILE_VERSION);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				out.writeShort(mBuildWidths[i]);
+				out.writeShort(mBuildHeights[i]);
+			}
+			mSheetBitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			return;
+		}
+
+		synchronized (this) {
+			System.arraycopy(mBuildWidths, 0, mWidths, first, count);
+			System.arraycopy(mBuildHeights, 0, mHeights, first, count);
+			mSheetReady[sheetIdx] = true;
+		}
+	}
+
+	private Bitmap decodeSheet(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			in.readInt();
+			int count = in.readInt();
+			in.skipBytes(count * 4);
+
+			BitmapFactory.Options opts = new BitmapFactory.Options();
+			opts.inPreferredConfig = Bitmap.Config.RGB_565;
+			return BitmapFactory.decodeStream(in, null, opts);
+		} catch (IOException e) {
+			Log.w("PlugPDF", "[WARNING] cannot read thumbnail sheet: " + e.getMessage());
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Deletes the sheets of the least recently opened documents, except the given one, while the
+	 * stored sheets exceed {@link #MAX_STORE_BYTES}.
+	 */
+	private static void trim(File root, File keep) {
+		synchronized (ThumbnailSpriteStore.class) {
+			File[] dirs = root.listFiles();
+			if (dirs == null) {
+				return;
+			}
+			final long[] modified = new long[dirs.length];
+			Integer[] order = new Integer[dirs.length];
+			for (int i = 0; i < dirs.length; i++) {
+				modified[i] = dirs[i].lastModified();
+				order[i] = i;
+			}
+			// most recently opened first
+			Arrays.sort(order, new Comparator<Integer>() {
+
+				@Override
+				public int compare(Integer a, Integer b) {
+					long ma = modified[a];
+					long mb = modified[b];
+					return ma > mb ? -1 : (ma == mb ? 0 : 1);
+				}
+			});
+
+			long total = 0;
+			for (Integer i : order) {
+				File dir = dirs[i];
+				total += sizeOf(dir);
+				if (total > MAX_STORE_BYTES && !dir.equals(keep)) {
+					deleteTree(dir);
+				}
+			}
+		}
+	}
+
+	private static long sizeOf(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return dir.length();
+		}
+		long size = 0;
+		for (File file : files) {
+			size += file.length();
+		}
+		return size;
+	}
+
+	private static void deleteTree(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private static void closeQuietly(DataInputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
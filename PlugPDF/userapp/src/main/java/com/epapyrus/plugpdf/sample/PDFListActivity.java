@@ -8,24 +8,35 @@
 package com.epapyrus.plugpdf.sample;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnTouchListener;
+import android.view.ViewConfiguration;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.RelativeLayout.LayoutParams;
 import android.widget.TextView;
 
+import com.epapyrus.plugpdf.DocumentPreloader;
+import com.epapyrus.plugpdf.LibrarySearch;
 import com.epapyrus.plugpdf.core.PDFDocument;
 import com.epapyrus.plugpdf.core.PlugPDFException.WrongPassword;
 import com.epapyrus.plugpdf.sample.documentView.ReaderWithControllerActivity;
@@ -34,6 +45,13 @@ import com.epapyrus.plugpdf.sample.documentViewWithoutController.ReaderActivity;
 /**
  * Fetches and displays the PDF document(s) on the DIRECTORY_DOWNLOADS path
  * (i.e. '/mnt/sdcard/Download') in ListView.
+ *
+ * The documents are indexed in the background with {@link LibrarySearch}, so that a keyword
+ * typed above the list is searched in all of them at once. Touching a result opens the reader
+ * at the page of the result.
+ *
+ * A document starts opening in the background as soon as its row is touched, with
+ * {@link DocumentPreloader}, and the reader adopts it when the row is clicked.
  *  
  * @author ePapyrus
  * @see <a target="_blank" href="https://developer.android.com/reference/android/widget/ListView.html">android.widget.ListView</a>
@@ -44,6 +62,15 @@ public class PDFListActivity extends Activity implements OnItemClickListener {
 	protected File downloadDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
 	private LinearLayout mLayout;
 	private String intentType;
+
+	private static final int SEARCH_DELAY_MS = 150;
+
+	private LibrarySearch mLibrarySearch;
+	private EditText mSearchText;
+	private ListView mFileListView;
+	private ListView mResultListView;
+	private ArrayAdapter<LibrarySearch.Result> mResultAdapter;
+	private final Handler mHandler = new Handler();
 	
 	/**
 	 * Sets the activity content, creating a layout.
@@ -57,6 +84,20 @@ public class PDFListActivity extends Activity implements OnItemClickListener {
 		intentType = getIntent().getStringExtra("TYPE");
 
 		mLayout = new LinearLayout(this);
+		mLayout.setOrientation(LinearLayout.VERTICAL);
+
+		mLibrarySearch = new LibrarySearch(this);
+		mLibrarySearch.setIndexListener(new LibrarySearch.IndexListener() {
+
+			@Override
+			public void onIndexProgress(int indexedFileCount, int fileCount) {
+				if (mSearchText != null) {
+					mSearchText.setHint(indexedFileCount < fileCount
+							? getString(R.string.library_search_indexing, indexedFileCount, fileCount)
+							: getString(R.string.library_search_hint));
+				}
+			}
+		});
 		
 		setContentView(mLayout, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
 		
@@ -129,8 +170,19 @@ public class PDFListActivity extends Activity implements OnItemClickListener {
 			}
 		
 			listView.setOnItemClickListener(this);
+			listView.setOnTouchListener(mPreloadListener);
 			
+			mFileListView = listView;
+			mLayout.addView(createSearchText(), new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
 			mLayout.addView(listView, new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+			mLayout.addView(createResultList(), new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+			
+			// Index the listed documents for the library search
+			ArrayList<String> paths = new ArrayList<String>();
+			for (int i = 0; i < adapter.getCount(); i++) {
+				paths.add(new File(downloadDir, adapter.getItem(i)).getAbsolutePath());
+			}
+			mLibrarySearch.setFiles(paths);
 			
 		} else {
 			
@@ -156,6 +208,209 @@ public class PDFListActivity extends Activity implements OnItemClickListener {
 		}
 	}
 	
+	/**
+	 * Starts opening the document of the touched row, so that the parse and the first page
+	 * overlap the start of the reader. Only {@link ReaderWithControllerActivity} adopts it.
+	 *
+	 * The preload starts once the finger has rested on the row for the tap timeout, or when it is
+	 * lifted earlier, so that flinging through the list does not open every row it passes. A touch
+	 * which turns into a scroll or is cancelled also stops the preload it started.
+	 */
+	private final PreloadListener mPreloadListener = new PreloadListener();
+
+	private class PreloadListener implements OnTouchListener, Runnable {
+		private String mFilePath;
+		private float mDownX;
+		private float mDownY;
+		private boolean mStarted;
+
+		@Override
+		public boolean onTouch(View v, MotionEvent event) {
+			if (!"READER".equals(intentType)) {
+				return false;
+			}
+			switch (event.getActionMasked()) {
+			case MotionEvent.ACTION_DOWN:
+				cancel();
+				ListView listView = (ListView) v;
+				int position = listView.pointToPosition((int) event.getX(), (int) event.getY());
+				if (position != ListView.INVALID_POSITION) {
+					// the path as opened by onItemClick()
+					mFilePath = downloadDir.getAbsolutePath() + "/" + listView.getItemAtPosition(position);
+					mDownX = event.getX();
+					mDownY = event.getY();
+					mHandler.postDelayed(this, ViewConfiguration.getTapTimeout());
+				}
+				break;
+			case MotionEvent.ACTION_MOVE:
+				int slop = ViewConfiguration.get(v.getContext()).getScaledTouchSlop();
+				if (mFilePath != null && (Math.abs(event.getX() - mDownX) > slop
+						|| Math.abs(event.getY() - mDownY) > slop)) {
+					cancel();
+				}
+				break;
+			case MotionEvent.ACTION_UP:
+				if (mFilePath != null && !mStarted) {
+					mHandler.removeCallbacks(this);
+					run();
+				}
+				mFilePath = null;
+				break;
+			case MotionEvent.ACTION_CANCEL:
+				cancel();
+				break;
+			}
+			// the list still handles the touch
+			return false;
+		}
+
+		@Override
+		public void run() {
+			mStarted = true;
+			DisplayMetrics metrics = getResources().getDisplayMetrics();
+			DocumentPreloader.getInstance().prepare(mFilePath, "", metrics.widthPixels,
+					metrics.heightPixels);
+		}
+
+		/**
+		 * Stops the pending preload, or the one started by the current touch.
+		 */
+		void cancel() {
+			mHandler.removeCallbacks(this);
+			if (mFilePath != null && mStarted) {
+				DocumentPreloader.getInstance().cancel();
+			}
+			mFilePath = null;
+			mStarted = false;
+		}
+	}
+
+	/**
+	 * Creates the search box of the library search. The search runs shortly after the user stops
+	 * typing; an empty keyword shows the document list again.
+	 */
+	private EditText createSearchText() {
+		mSearchText = new EditText(this);
+		mSearchText.setSingleLine(true);
+		mSearchText.setHint(R.string.library_search_hint);
+		mSearchText.addTextChangedListener(new TextWatcher() {
+
+			@Override
+			public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+			@Override
+			public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+			@Override
+			public void afterTextChanged(Editable s) {
+				mHandler.removeCallbacks(mSearchRunnable);
+				mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MS);
+			}
+		});
+		return mSearchText;
+	}
+
+	/**
+	 * Creates the list of the library search results: one row per page, with the document name,
+	 * the page number and the text around the keyword.
+	 */
+	private ListView createResultList() {
+		mResultAdapter = new ArrayAdapter<LibrarySearch.Result>(this,
+				android.R.layout.simple_list_item_2, android.R.id.text1) {
+
+			@Override
+			public View getView(int position, View convertView, android.view.ViewGroup parent) {
+				View v = super.getView(position, convertView, parent);
+				LibrarySearch.Result result = getItem(position);
+				((TextView) v.findViewById(android.R.id.text1)).setText(
+						new File(result.getFilePath()).getName() + " - p." + (result.getPageIdx() + 1));
+				((TextView) v.findViewById(android.R.id.text2)).setText(result.getSnippet());
+				return v;
+			}
+		};
+
+		mResultListView = new ListView(this);
+		mResultListView.setAdapter(mResultAdapter);
+		mResultListView.setVisibility(View.GONE);
+		mResultListView.setOnItemClickListener(new OnItemClickListener() {
+
+			@Override
+			public void onItemClick(AdapterView<?> parent, View view, int index, long longIndex) {
+				LibrarySearch.Result result = mResultAdapter.getItem(index);
+				Intent readerIntent = getIntent(intentType);
+				readerIntent.putExtra("fileName", result.getFilePath());
+				readerIntent.putExtra("pageIdx", result.getPageIdx());
+				startActivity(readerIntent);
+			}
+		});
+		return mResultListView;
+	}
+
+	/**
+	 * Searches the keyword of the search box in all the listed documents.
+	 */
+	private final Runnable mSearchRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			String keyword = mSearchText.getText().toString().trim();
+			if (keyword.length() == 0) {
+				mResultAdapter.clear();
+				mResultListView.setVisibility(View.GONE);
+				mFileListView.setVisibility(View.VISIBLE);
+				return;
+			}
+			mLibrarySearch.search(keyword, new LibrarySearch.ResultListener() {
+
+				@Override
+				public void onSearchResult(String query, LibrarySearch.Result[] results) {
+					mResultAdapter.clear();
+					for (LibrarySearch.Result result : results) {
+						mResultAdapter.add(result);
+					}
+					mFileListView.setVisibility(View.GONE);
+					mResultListView.setVisibility(View.VISIBLE);
+				}
+			});
+		}
+	};
+
+	/**
+	 * Resumes indexing the documents when the list is visible again.
+	 *
+	 * @see android.app.Activity#onStart()
+	 */
+	@Override
+	protected void onStart() {
+		super.onStart();
+		mLibrarySearch.resume();
+	}
+
+	/**
+	 * Suspends indexing while a document is opened in the reader, which extracts the text of
+	 * the document into the same cache.
+	 *
+	 * @see android.app.Activity#onStop()
+	 */
+	@Override
+	protected void onStop() {
+		mLibrarySearch.pause();
+		super.onStop();
+	}
+
+	/**
+	 * Stops the library search.
+	 *
+	 * @see android.app.Activity#onDestroy()
+	 */
+	@Override
+	protected void onDestroy() {
+		mHandler.removeCallbacks(mSearchRunnable);
+		mHandler.removeCallbacks(mPreloadListener);
+		mLibrarySearch.close();
+		super.onDestroy();
+	}
+
 	/* (non-Javadoc)
 	 * @see <a target="_blank" href="https://developer.android.com/reference/android/widget/AdapterView.OnItemClickListener.html#onItemClick%28android.widget.AdapterView%3C?%3E,%20android.view.View,%20int,%20long%29">android.widget.AdapterView.OnItemClickListener.onItemClick(android.widget.AdapterView, android.view.View, int, long)</a>
 	 */
@@ -11,6 +11,8 @@ import android.app.Application;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.epapyrus.plugpdf.DocumentHandleCache;
+import com.epapyrus.plugpdf.DocumentPreloader;
 import com.epapyrus.plugpdf.core.PlugPDF;
 import com.epapyrus.plugpdf.core.PlugPDFException.InvalidLicense;
 import com.epapyrus.plugpdf.core.PlugPDFException.LicenseMismatchAppID;
@@ -76,4 +78,19 @@ public class PlugPDFLauncherApplication extends Application {
 			Log.e("Exception", exceptionMsg);
 		}
 	}
+
+	/**
+	 * Releases the cached document handles and the preloaded document when the system runs low
+	 * on memory.
+	 *
+	 * @see <a target="_blank" href="http://developer.android.com/reference/android/app/Application.html#onTrimMemory(int)">android.app.Application.onTrimMemory(int)</a>
+	 */
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (level >= TRIM_MEMORY_BACKGROUND) {
+			DocumentHandleCache.getInstance().clear();
+			DocumentPreloader.getInstance().cancel();
+		}
+	}
 }
@@ -7,16 +7,15 @@
 
 package com.epapyrus.plugpdf.sample.documentView;
 
-import java.io.InputStream;
-
 import android.app.Activity;
 import android.content.Intent;
-import android.content.res.AssetManager;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.util.Log;
 
+import com.epapyrus.plugpdf.OpenTask;
+import com.epapyrus.plugpdf.ReaderSession;
 import com.epapyrus.plugpdf.SimpleDocumentReader;
 import com.epapyrus.plugpdf.SimpleDocumentReaderListener;
 import com.epapyrus.plugpdf.SimpleReaderFactory;
@@ -38,6 +37,7 @@ import com.epapyrus.plugpdf.sample.R;
 public class ReaderWithControllerActivity extends Activity {
 
 	private SimpleDocumentReader mReader;
+	private int mInitialPageIdx;
 
 	/**
 	 * Displays a PDF by creating simple PDF viewer, which is used for viewing, reading and
@@ -52,19 +52,21 @@ public class ReaderWithControllerActivity extends Activity {
 		// Get the file name selected by the user
 		Intent intent = getIntent();
 		String fileName = intent.getStringExtra("fileName");
+		// Page to display once opened, e.g. a library search result
+		mInitialPageIdx = intent.getIntExtra("pageIdx", 0);
 
 		mReader = SimpleReaderFactory.createSimpleViewer(this, listener);
-		if (fileName != null && fileName.length() > 0) {
-			mReader.openFile(fileName, "");
+		// The document kept by the previous instance, if this activity is recreated
+		ReaderSession session = (ReaderSession) getLastNonConfigurationInstance();
+		if (session != null) {
+			mInitialPageIdx = 0;
+			mReader.restoreSession(session);
+
+		} else if (fileName != null && fileName.length() > 0) {
+			mReader.openFileAsync(fileName, "", openListener);
 
 		} else { // If did not select file, open file in the assets.
-            byte[] data = new byte[0];
-            try {
-                data = readAssetFile("Gone_With_the_Wind.pdf");
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            mReader.openData(data, data.length, "");
+			mReader.openAssetAsync("Gone_With_the_Wind.pdf", "", openListener);
 
 		}
 
@@ -102,6 +104,24 @@ public class ReaderWithControllerActivity extends Activity {
 		}
 	};
 
+	/**
+	 * Logs the time spent in each phase of the open, up to the first rendered page.
+	 */
+	private OpenTask.Listener openListener = new OpenTask.Listener() {
+
+		@Override
+		public void onOpenProgress(OpenTask task, OpenTask.Phase phase, int percent) {
+		}
+
+		@Override
+		public void onOpenFinish(OpenTask task, OPEN state) {
+			Log.i("PlugPDF", "[INFO] Open " + state + " in " + task.getTotalMillis() + " ms (I/O "
+					+ task.getPhaseMillis(OpenTask.Phase.IO) + " ms, parse "
+					+ task.getPhaseMillis(OpenTask.Phase.PARSE) + " ms, first page "
+					+ task.getPhaseMillis(OpenTask.Phase.FIRST_PAGE) + " ms)");
+		}
+	};
+
 	/**
 	 * Receives event notifications when a PDF document completes loading on a SimpleDocumentReader.
 	 */
@@ -110,47 +130,29 @@ public class ReaderWithControllerActivity extends Activity {
 		@Override
 		public void onLoadFinish(OPEN state) {
 			Log.i("PlugPDF", "[INFO] Open " + state);
+			if (state == OPEN.SUCCESS && mInitialPageIdx > 0) {
+				mReader.goToPage(mInitialPageIdx);
+			}
 		}
 	};
 
 	/**
-	 * Converts the given PDF file into an array of bytes.
+	 * Keeps the open document when this activity is recreated after a configuration change, so
+	 * that it is not saved, released and parsed again.
 	 *
-	 * @param fileName The PDF document to convert
-	 * @return data The PDF document converted into byte array
-	 * @throws Exception Informs about why the document couldn't be opened
+	 * @see <a target="_blank" href="http://developer.android.com/reference/android/app/Activity.html#onRetainNonConfigurationInstance()">android.app.Activity.onRetainNonConfigurationInstance()</a>
 	 */
-	private byte[] readAssetFile(String fileName) throws Exception {
-
-		AssetManager am = getResources().getAssets();
-		byte[] data = null;
-
-		try {
-
-			InputStream is = am.open(fileName);
-
-			int size = is.available();
-			if (size > 0) {
-				data = new byte[size];
-				is.read(data);
-			}
-
-			is.close();
-
-		} catch (Exception ex) {
-			Log.e("PlugPDF", "[ERROR] open fail because, ", ex);
-            ex.printStackTrace();
-            throw(ex);
-		}
-
-		return data;
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		return mReader.retainSession();
 	}
 
 	/**
 	 * Saves the document by checking its availability just before destroying this activity.
 	 *
-	 * If the activity was opened with openData(...), then it will be saved on the root folder of
-	 * the user's device's external storage.
+	 * The edits of the document bundled in the assets are saved as a new file of the external
+	 * storage, not into its copy in the application cache. Nothing is done when the document was
+	 * retained for the recreated activity: the reader then has no document anymore.
 	 *
 	 * @see <a target="_blank" href="http://developer.android.com/reference/android/app/Activity.html#onDestroy()">android.app.Activity.onDestroy()</a>
 	 */
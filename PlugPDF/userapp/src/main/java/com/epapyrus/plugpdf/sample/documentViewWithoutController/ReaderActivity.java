@@ -7,17 +7,23 @@
 
 package com.epapyrus.plugpdf.sample.documentViewWithoutController;
 
-import java.io.InputStream;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.content.res.AssetManager;
 import android.os.Bundle;
+import android.os.Environment;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.widget.LinearLayout;
 
+import com.epapyrus.plugpdf.AssetFileCache;
 import com.epapyrus.plugpdf.PasswordDialog;
+import com.epapyrus.plugpdf.core.PDFDocument;
 import com.epapyrus.plugpdf.core.viewer.BasePlugPDFDisplay.PageDisplayMode;
 import com.epapyrus.plugpdf.core.viewer.DocumentState.OPEN;
 import com.epapyrus.plugpdf.core.viewer.ReaderListener;
@@ -49,6 +55,8 @@ public class ReaderActivity extends Activity {
 		// Get the file name selected by the user
 		Intent intent = getIntent();
 		final String fileName = intent.getStringExtra("fileName");
+		// Page to display once opened, e.g. a library search result
+		final int initialPageIdx = intent.getIntExtra("pageIdx", 0);
 		
 		LinearLayout layout = new LinearLayout(this);
 		setContentView(layout);
@@ -62,7 +70,9 @@ public class ReaderActivity extends Activity {
 			
 			@Override
 			public void onLoadFinish(OPEN state) {
-				if (state == OPEN.WRONG_PASSWD) {
+				if (state == OPEN.SUCCESS && initialPageIdx > 0) {
+					mReader.goToPage(initialPageIdx);
+				} else if (state == OPEN.WRONG_PASSWD) {
 					PasswordDialog dialog = new PasswordDialog(ReaderActivity.this) {
 						public void onInputtedPassword(String password) {
 							openPDF(fileName, password);
@@ -98,55 +108,61 @@ public class ReaderActivity extends Activity {
 			mReader.openFile(fileName, password);
 			
 		} else { // If did not select file, open file in the assets.
-			byte[] data = readAssetFile("Gone_With_the_Wind.pdf");
-			mReader.openData(data, data.length, password);
+			openAsset("Gone_With_the_Wind.pdf", password);
 			
 		}
 	}
 	
 	/**
-	 * Converts the given PDF file into an array of bytes.
+	 * Opens a PDF document bundled in the assets. The asset is copied once to the application
+	 * cache on a background thread, then opened by path, so it is never held in memory.
 	 *
-	 * @param fileName The PDF document to convert
-	 * @return data The PDF document converted into byte array
-	 * @throws exception Informs about why the document couldn't be opened
+	 * @param assetName The PDF file's path in the assets
+	 * @param password Password used to unlock an encrypted document (if unencrypted use "")
 	 */
-	private byte[] readAssetFile(String fileName) {
-		
-		AssetManager am = getResources().getAssets();
-		byte[] data = null;
-		
-		try {
-			
-			InputStream is = am.open(fileName);
+	private void openAsset(final String assetName, final String password) {
+		new Thread(new Runnable() {
 
-			int size = is.available();
-			if (size > 0) {
-				data = new byte[size];
-				is.read(data);
-			}
+			@Override
+			public void run() {
+				try {
+					final File file = AssetFileCache.getFile(ReaderActivity.this, assetName);
+					runOnUiThread(new Runnable() {
 
-			is.close();
-			
-		} catch (Exception ex) {
-			Log.e("PlugPDF", "[ERROR] open fail because, ", ex);
-		}
-		
-		return data;
+						@Override
+						public void run() {
+							if (!isFinishing()) {
+								mReader.openFile(file.getPath(), password);
+							}
+						}
+					});
+				} catch (IOException ex) {
+					Log.e("PlugPDF", "[ERROR] open fail because, ", ex);
+				}
+			}
+		}, "PlugPDF-Asset").start();
 	}
 	
 	/**
 	 * Saves the document by checking its availability just before destroying this activity.
 	 *
-	 * If the activity was opened with openData(...), then it will be saved on the root folder of
-	 * your device's external storage.
+	 * The copy of the document bundled in the assets is left unchanged; its edits are saved as
+	 * a new file in the external storage, since the application cache may be cleared at any time.
 	 *
 	 * @see android.app.Activity#onDestroy()
 	 */
 	@Override
 	protected void onDestroy() {
-		if (mReader.getDocument() != null) {
-			mReader.save();
+		PDFDocument doc = mReader.getDocument();
+		if (doc != null) {
+			if (AssetFileCache.contains(this, doc.getFilePath())) {
+				if (doc.wasEdited()) {
+					mReader.saveAsFile(Environment.getExternalStorageDirectory() + File.separator
+							+ new SimpleDateFormat("yyyyMMddHHmmss", Locale.US).format(new Date()) + ".pdf");
+				}
+			} else {
+				mReader.save();
+			}
 			mReader.clear();
 		}
 		super.onDestroy();